@@ -0,0 +1,207 @@
+package net.kenevans.ecgutils;
+
+import java.util.BitSet;
+
+/**
+ * ArtifactCorrector replaces marked values in a series, typically RR values
+ * marked as outliers, by interpolating from the neighboring unmarked values,
+ * using the index as the abscissa. Correcting the artifacts rather than
+ * dropping them keeps the successive differences between real neighbors, so
+ * RMSSD and the other metrics are not distorted.
+ *
+ * The series is corrected in one forward pass. At the start of a run of marked
+ * values, the pass looks ahead at most maxGap values for the next unmarked
+ * one, and for the spline one more unmarked value past that. Runs that are
+ * longer than maxGap, or that are at the start or end of the series, cannot be
+ * interpolated and are left as they are and still marked.
+ *
+ * The corrected values and marks are kept in buffers that are only grown, and
+ * correct returns a MarkedSeries that wraps them without copying, so an
+ * instance can be reused for many series. The returned series is only valid
+ * until the next call. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class ArtifactCorrector
+{
+    /**
+     * Method Ways the marked values can be interpolated.
+     *
+     * @author Kenneth Evans, Jr.
+     */
+    public static enum Method {
+        /** A straight line between the unmarked values on either side. */
+        LINEAR,
+        /**
+         * A cubic Hermite spline between the unmarked values on either side,
+         * with the slopes at each end found from the unmarked values next to
+         * them (Catmull-Rom). Reverts to linear at the ends of the series.
+         */
+        CUBIC_SPLINE
+    };
+
+    private final Method method;
+    private final int maxGap;
+    private double[] vals = new double[0];
+    private final BitSet marks = new BitSet();
+    private int nCorrected;
+
+    /**
+     * ArtifactCorrector constructor.
+     *
+     * @param method The interpolation Method.
+     * @param maxGap The longest run of marked values to correct.
+     */
+    public ArtifactCorrector(Method method, int maxGap) {
+        if(maxGap < 1) {
+            throw new IllegalArgumentException("Invalid maxGap: " + maxGap);
+        }
+        this.method = method;
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Corrects the marked values in a series. The input is not changed.
+     *
+     * @param series The series to correct.
+     * @return A series with the corrected values unmarked and any values that
+     *         could not be corrected still marked. It wraps the buffers of this
+     *         instance and is only valid until the next call.
+     */
+    public MarkedSeries correct(MarkedSeries series) {
+        int n = series.size();
+        if(vals.length < n) {
+            vals = new double[n];
+        }
+        correct(series.getVals(), series.getMarks(), n, vals, marks);
+        return new MarkedSeries(vals, marks, n);
+    }
+
+    /**
+     * Corrects the marked values in the first n values of x. The output may be
+     * the same array and BitSet as the input, to correct in place.
+     *
+     * @param x The values.
+     * @param xMarks Bit i is set if value i is marked.
+     * @param n The number of values to use.
+     * @param out The corrected values.
+     * @param outMarks The marks for the values that could not be corrected.
+     * @return The number of values corrected.
+     */
+    public int correct(double[] x, BitSet xMarks, int n, double[] out,
+        BitSet outMarks) {
+        if(out != x) {
+            System.arraycopy(x, 0, out, 0, n);
+        }
+        if(outMarks != xMarks) {
+            outMarks.clear();
+            outMarks.or(xMarks);
+        }
+        nCorrected = 0;
+        // The last two unmarked indices before the current position
+        int prev = -1, prev2 = -1;
+        int i = 0, next, next2, limit;
+        while(i < n) {
+            if(!xMarks.get(i)) {
+                prev2 = prev;
+                prev = i;
+                i++;
+                continue;
+            }
+            // Look ahead for the end of the run of marked values
+            limit = Math.min(i + maxGap, n);
+            next = i + 1;
+            while(next < limit && xMarks.get(next)) {
+                next++;
+            }
+            if(next >= n || xMarks.get(next)) {
+                // Too long or at the end, leave the run marked
+                i = next;
+                while(i < n && xMarks.get(i)) {
+                    i++;
+                }
+                // The run breaks the spline slopes
+                prev = -1;
+                prev2 = -1;
+                continue;
+            }
+            if(prev < 0) {
+                // At the start, leave the run marked
+                i = next;
+                continue;
+            }
+            next2 = -1;
+            if(method == Method.CUBIC_SPLINE) {
+                limit = Math.min(next + 1 + maxGap, n);
+                for(int k = next + 1; k < limit; k++) {
+                    if(!xMarks.get(k)) {
+                        next2 = k;
+                        break;
+                    }
+                }
+            }
+            interpolate(x, prev2, prev, next, next2, out);
+            outMarks.clear(prev + 1, next);
+            nCorrected += next - prev - 1;
+            i = next;
+        }
+        return nCorrected;
+    }
+
+    /**
+     * Fills out between the unmarked indices p1 and n1.
+     *
+     * @param x The values.
+     * @param p0 The unmarked index before p1 or -1 if none.
+     * @param p1 The last unmarked index before the run.
+     * @param n1 The first unmarked index after the run.
+     * @param n2 The unmarked index after n1 or -1 if none.
+     * @param out
+     */
+    private void interpolate(double[] x, int p0, int p1, int n1, int n2,
+        double[] out) {
+        double y1 = x[p1];
+        double y2 = x[n1];
+        double h = n1 - p1;
+        if(method == Method.LINEAR || p0 < 0 || n2 < 0) {
+            double slope = (y2 - y1) / h;
+            for(int k = p1 + 1; k < n1; k++) {
+                out[k] = y1 + slope * (k - p1);
+            }
+            return;
+        }
+        // Slopes per index at each end, scaled to the interval
+        double m1 = h * (y2 - x[p0]) / (n1 - p0);
+        double m2 = h * (x[n2] - y1) / (n2 - p1);
+        double t, t2, t3;
+        for(int k = p1 + 1; k < n1; k++) {
+            t = (k - p1) / h;
+            t2 = t * t;
+            t3 = t2 * t;
+            out[k] = (2 * t3 - 3 * t2 + 1) * y1 + (t3 - 2 * t2 + t) * m1
+                + (-2 * t3 + 3 * t2) * y2 + (t3 - t2) * m2;
+        }
+    }
+
+    /**
+     * @return The number of values corrected by the last call.
+     */
+    public int getNCorrected() {
+        return nCorrected;
+    }
+
+    /**
+     * @return The interpolation Method.
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return The longest run of marked values that is corrected.
+     */
+    public int getMaxGap() {
+        return maxGap;
+    }
+
+}
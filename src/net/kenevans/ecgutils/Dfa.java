@@ -0,0 +1,196 @@
+package net.kenevans.ecgutils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Dfa does detrended fluctuation analysis. The series, less its mean, is
+ * summed into one cumulative-sum array. For each box size n, the array is
+ * divided into boxes of n points, a line is fit to each box, and F(n) is the
+ * RMS of the residuals over all the boxes. The scaling exponent alpha is the
+ * slope of log F(n) against log n. For HRV, alpha1 uses box sizes 4 to 16.
+ *
+ * The box sizes are independent, so for long series they are calculated in
+ * parallel in a shared pool of daemon threads, created when first needed, all
+ * reading the same cumulative-sum array. The buffers are kept and only grown,
+ * so an instance can be reused for many series. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class Dfa
+{
+    /** The smallest box size for alpha1. */
+    public static final int ALPHA1_MIN_BOX = 4;
+    /** The largest box size for alpha1. */
+    public static final int ALPHA1_MAX_BOX = 16;
+    /** Series with at least this many points do the box sizes in parallel. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+    /** The shared pool for the box sizes, created when first needed. */
+    private static ExecutorService executor;
+
+    private double[] y = new double[0];
+    private double[] fluctuations = new double[0];
+
+    /**
+     * Calculates alpha1 for the unmarked values.
+     *
+     * @param x The values.
+     * @param n The number of values to use.
+     * @param marks Bit i is set if value i should be skipped. May be null.
+     * @return alpha1, or NaN if there are too few values.
+     */
+    public double alpha1(double[] x, int n, BitSet marks) {
+        return alpha(x, n, marks, ALPHA1_MIN_BOX, ALPHA1_MAX_BOX);
+    }
+
+    /**
+     * Calculates the scaling exponent for box sizes from minBox to maxBox for
+     * the unmarked values.
+     *
+     * @param x The values.
+     * @param n The number of values to use.
+     * @param marks Bit i is set if value i should be skipped. May be null.
+     * @param minBox The smallest box size, at least 3.
+     * @param maxBox The largest box size.
+     * @return alpha, or NaN if there are fewer than maxBox values.
+     */
+    public double alpha(double[] x, int n, BitSet marks, int minBox,
+        int maxBox) {
+        if(minBox < 3 || maxBox <= minBox) {
+            throw new IllegalArgumentException("Invalid box sizes: " + minBox
+                + " to " + maxBox);
+        }
+        // Make the cumulative sum of the deviations from the mean
+        if(y.length < n) {
+            y = new double[n];
+        }
+        int nUsed = 0;
+        double mean = 0;
+        for(int i = 0; i < n; i++) {
+            if(marks != null && marks.get(i)) continue;
+            y[nUsed++] = x[i];
+            mean += x[i];
+        }
+        if(nUsed < maxBox) return Double.NaN;
+        mean /= nUsed;
+        double sum = 0;
+        for(int i = 0; i < nUsed; i++) {
+            sum += y[i] - mean;
+            y[i] = sum;
+        }
+
+        int nSizes = maxBox - minBox + 1;
+        if(fluctuations.length < nSizes) {
+            fluctuations = new double[nSizes];
+        }
+        final int len = nUsed;
+        if(len >= PARALLEL_THRESHOLD) {
+            ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                nSizes);
+            for(int i = 0; i < nSizes; i++) {
+                final int index = i;
+                final int boxSize = minBox + i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        fluctuations[index] = fluctuation(y, len, boxSize);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for(Future<Void> future : getExecutor().invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return Double.NaN;
+            } catch(ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        } else {
+            for(int i = 0; i < nSizes; i++) {
+                fluctuations[i] = fluctuation(y, len, minBox + i);
+            }
+        }
+
+        // Least-squares slope of log F against log n
+        double sx = 0, sy = 0, sxx = 0, sxy = 0, lx, ly;
+        for(int i = 0; i < nSizes; i++) {
+            lx = Math.log(minBox + i);
+            ly = Math.log(fluctuations[i]);
+            sx += lx;
+            sy += ly;
+            sxx += lx * lx;
+            sxy += lx * ly;
+        }
+        return (nSizes * sxy - sx * sy) / (nSizes * sxx - sx * sx);
+    }
+
+    /**
+     * Returns the shared pool, creating it if necessary. Its threads are
+     * daemon threads, so it does not need to be shut down.
+     *
+     * @return
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                .availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Dfa");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Calculates F(n) for one box size.
+     *
+     * @param y The cumulative sum.
+     * @param len The length of y to use.
+     * @param boxSize
+     * @return
+     */
+    private static double fluctuation(double[] y, int len, int boxSize) {
+        int nBoxes = len / boxSize;
+        // The box indices are 0 to boxSize - 1, so their sums are fixed
+        double tMean = .5 * (boxSize - 1);
+        double stt = 0;
+        for(int t = 0; t < boxSize; t++) {
+            stt += (t - tMean) * (t - tMean);
+        }
+        double total = 0, yMean, sty, syy, dy, slope;
+        int start;
+        for(int b = 0; b < nBoxes; b++) {
+            start = b * boxSize;
+            yMean = 0;
+            for(int t = 0; t < boxSize; t++) {
+                yMean += y[start + t];
+            }
+            yMean /= boxSize;
+            sty = 0;
+            syy = 0;
+            for(int t = 0; t < boxSize; t++) {
+                dy = y[start + t] - yMean;
+                sty += (t - tMean) * dy;
+                syy += dy * dy;
+            }
+            // Residual sum of squares of the least-squares line
+            slope = sty / stt;
+            total += syy - slope * sty;
+        }
+        return Math.sqrt(Math.max(total, 0) / (nBoxes * boxSize));
+    }
+
+}
@@ -1,12 +1,10 @@
 package net.kenevans.ecgutils;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.ListIterator;
 
 /**
  * ECGUtils is a class that provides utilities for ECG calculations.
@@ -16,14 +14,125 @@ import java.util.ListIterator;
 public class ECGUtils
 {
     public static final String LS = System.getProperty("line.separator");
-    private static SimpleDateFormat hxmDateTimeFormat = new SimpleDateFormat(
-        "yyyy-MM-dd HH:mm:ss.SSS");
+    /** The pattern for times in HxM files. */
+    public static final String HXM_DATE_TIME_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    /**
+     * SimpleDateFormat is not thread safe, so each thread gets its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> hxmDateTimeFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(HXM_DATE_TIME_PATTERN);
+        }
+    };
+    /**
+     * Per-thread HxMTimeParser and its cached day. It uses the
+     * SimpleDateFormat of the same thread, so parseHxMTime gives the same
+     * results as getHxMDateTimeFormat().parse.
+     */
+    private static final ThreadLocal<HxMTimeParser> hxmTimeParser = new ThreadLocal<HxMTimeParser>() {
+        @Override
+        protected HxMTimeParser initialValue() {
+            return new HxMTimeParser(hxmDateTimeFormat.get());
+        }
+    };
+    /** Per-thread HxMTimeFormatter and its scratch buffer. */
+    private static final ThreadLocal<HxMTimeFormatter> hxmTimeFormatter = new ThreadLocal<HxMTimeFormatter>() {
+        @Override
+        protected HxMTimeFormatter initialValue() {
+            return new HxMTimeFormatter();
+        }
+    };
 
     /**
-     * @return The value of hxmDateTimeFormat.
+     * Returns a SimpleDateFormat for times in HxM files. It belongs to the
+     * calling thread and should not be passed to other threads. Prefer
+     * formatHxMTime and parseHxMTime, which are thread safe.
+     * 
+     * @return The value of hxmDateTimeFormat for this thread.
      */
     public static SimpleDateFormat getHxMDateTimeFormat() {
-        return hxmDateTimeFormat;
+        return hxmDateTimeFormat.get();
+    }
+
+    /**
+     * Formats a time as in an HxM file. Thread safe.
+     * 
+     * @param time The time in ms.
+     * @return The formatted time.
+     */
+    public static String formatHxMTime(long time) {
+        return hxmTimeFormatter.get().format(time);
+    }
+
+    /**
+     * Parses a time of the form used in HxM files in the default time zone.
+     * The result is the same as that of getHxMDateTimeFormat().parse, and
+     * anything after the time is ignored. Thread safe.
+     * 
+     * @param text The text to parse.
+     * @return The time in ms.
+     * @throws ParseException If the text is not a valid time.
+     */
+    public static long parseHxMTime(CharSequence text) throws ParseException {
+        return hxmTimeParser.get().parse(text);
+    }
+
+    /**
+     * Parses a time of the form used in HxM files that starts at off in the
+     * given text. Anything after it is ignored. The result is the same as
+     * that of getHxMDateTimeFormat().parse. Thread safe.
+     * 
+     * @param text The text to parse.
+     * @param off Where the time starts.
+     * @return The time in ms.
+     * @throws ParseException If the text is not a valid time.
+     */
+    public static long parseHxMTime(CharSequence text, int off)
+        throws ParseException {
+        return hxmTimeParser.get().parse(text, off);
+    }
+
+    /**
+     * OutlierMethod Ways outliers can be marked.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    public static enum OutlierMethod {
+        /** The original moving average. See markOutliers. */
+        MOVING_AVERAGE,
+        /**
+         * The mean of a window centered on each point. See
+         * markOutliersCentered.
+         */
+        CENTERED_MEAN,
+        /**
+         * The median of a window centered on each point. See
+         * markOutliersMedian.
+         */
+        CENTERED_MEDIAN
+    };
+
+    /**
+     * Marks outliers in the input series using the given method.
+     * 
+     * @param vals A MarkedSeries of values.
+     * @param method The OutlierMethod.
+     * @param threshold The threshold.
+     * @param hwin The half window.
+     * @return If successful or not.
+     */
+    public static boolean markOutliers(MarkedSeries vals,
+        OutlierMethod method, double threshold, int hwin) {
+        switch(method) {
+        case CENTERED_MEAN:
+            return markOutliersCentered(vals, threshold, hwin);
+        case CENTERED_MEDIAN:
+            return markOutliersMedian(vals, threshold, hwin);
+        case MOVING_AVERAGE:
+        default:
+            return markOutliers(vals, threshold, hwin);
+        }
     }
 
     /**
@@ -39,52 +148,135 @@ public class ECGUtils
      */
     public static CreateHxMFileReturn writeHxMFile(File file, long startTime,
         ArrayList<MarkedDouble> rrTimeList, int movingAveragelength) {
+        return writeHxMFile(file, startTime,
+            MarkedSeries.fromList(rrTimeList), movingAveragelength);
+    }
+
+    /**
+     * Writes an HxM file using the given parameters. The endTime and return
+     * value can be obtained from the CreateHxMFileReturn. Uses no shared
+     * state, so it may be called concurrently for different files.
+     * 
+     * @param file The file to write.
+     * @param startTime The start time of the session.
+     * @param rrTimes A series of HB times (not RR intervals).
+     * @param movingAveragelength Length of the moving average for the HR
+     *            calculation.
+     * @return CreateHxMFileReturn containing the return value and endTime.
+     * @see HxMWriter
+     */
+    public static CreateHxMFileReturn writeHxMFile(File file, long startTime,
+        MarkedSeries rrTimes, int movingAveragelength) {
+        return writeHxMFile(file, startTime, rrTimes, movingAveragelength,
+            null);
+    }
+
+    /**
+     * Writes an HxM file using the given parameters and optionally also writes
+     * the same session in binary form. The endTime and return value can be
+     * obtained from the CreateHxMFileReturn.
+     * 
+     * @param file The file to write.
+     * @param startTime The start time of the session.
+     * @param rrTimes A series of HB times (not RR intervals).
+     * @param movingAveragelength Length of the moving average for the HR
+     *            calculation.
+     * @param binaryFile The binary file to write or null for none.
+     * @return CreateHxMFileReturn containing the return value and endTime.
+     * @see HxMBinary
+     */
+    public static CreateHxMFileReturn writeHxMFile(File file, long startTime,
+        MarkedSeries rrTimes, int movingAveragelength, File binaryFile) {
+        return writeHxMFile(file, startTime, rrTimes, movingAveragelength,
+            binaryFile, true);
+    }
+
+    /**
+     * Writes an HxM file using the given parameters and optionally also writes
+     * the same session in binary form. The endTime, return value, and any
+     * error can be obtained from the CreateHxMFileReturn.
+     * 
+     * @param file The file to write.
+     * @param startTime The start time of the session.
+     * @param rrTimes A series of HB times (not RR intervals).
+     * @param movingAveragelength Length of the moving average for the HR
+     *            calculation.
+     * @param binaryFile The binary file to write or null for none.
+     * @param showErrors Whether to show a dialog for an error. If false, the
+     *            caller should report the error from the CreateHxMFileReturn.
+     * @return CreateHxMFileReturn containing the return value, endTime, and
+     *         any error.
+     * @see HxMBinary
+     */
+    public static CreateHxMFileReturn writeHxMFile(File file, long startTime,
+        MarkedSeries rrTimes, int movingAveragelength, File binaryFile,
+        boolean showErrors) {
         boolean retVal = true;
-        PrintWriter out = null;
+        String errorMessage = null;
+        Exception error = null;
+        HxMWriter out = null;
         MovingAverage ma = new MovingAverage(movingAveragelength);
-        String timeStamp = null;
-        Date date = null;
         long endTime = startTime;
         long longVal;
         long hr;
         long rr;
-        boolean first = true;
         double dVal;
         double lastDVal = 0;
+        int nVals = rrTimes.size();
+        HxMSession session = null;
+        if(binaryFile != null) {
+            session = new HxMSession(startTime, nVals);
+        }
         try {
-            out = new PrintWriter(new FileWriter(file));
-            for(MarkedDouble md : rrTimeList) {
-                dVal = md.getVal();
-                if(first) {
-                    first = false;
-                    lastDVal = dVal;
-                    continue;
-                }
+            out = new HxMWriter(file);
+            if(nVals > 0) {
+                lastDVal = rrTimes.getVal(0);
+            }
+            for(int i = 1; i < nVals; i++) {
+                dVal = rrTimes.getVal(i);
                 longVal = Math.round(dVal);
                 // Need to convert to BLE units of 1/1024 sec.
                 rr = Math.round((dVal - lastDVal) * 1.024);
                 ma.newNum(60000. / (dVal - lastDVal));
                 hr = Math.round(ma.getAvg());
-                // // DEBUG
-                // System.out.println("hr=" + (60000. / (dVal - lastDVal))
-                // + "  avg=" + ma.getAvg());
                 endTime = startTime + longVal;
-                date = new Date(endTime);
-                timeStamp = hxmDateTimeFormat.format(date);
-                if(!md.getMarked()) {
-                    out.printf("%s,%d,%d,-1,-1" + LS, timeStamp, hr, rr);
+                if(!rrTimes.getMarked(i)) {
+                    out.writeLine(endTime, hr, rr);
                 } else {
                     // Output a blank line
-                    out.println();
+                    out.writeBlankLine();
+                }
+                if(session != null) {
+                    session.add(endTime, hr, rr, rrTimes.getMarked(i));
                 }
                 lastDVal = dVal;
             }
+            if(session != null) {
+                HxMBinary.write(binaryFile, session);
+            }
         } catch(Exception ex) {
-            Utils.excMsg("Error writing HxM file", ex);
+            errorMessage = "Error writing HxM file";
+            error = ex;
+            if(showErrors) {
+                Utils.excMsg(errorMessage, ex);
+            }
             ex.printStackTrace();
             retVal = false;
         } finally {
-            if(out != null) out.close();
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ex) {
+                    if(error == null) {
+                        errorMessage = "Error closing HxM file";
+                        error = ex;
+                    }
+                    if(showErrors) {
+                        Utils.excMsg("Error closing HxM file", ex);
+                    }
+                    retVal = false;
+                }
+            }
         }
         if(retVal) {
             System.out.println();
@@ -93,7 +285,10 @@ public class ECGUtils
             System.out.println();
             System.out.println("Error writing " + file.getPath());
         }
-        return new CreateHxMFileReturn(retVal, endTime);
+        CreateHxMFileReturn res = new CreateHxMFileReturn(retVal, endTime);
+        res.errorMessage = errorMessage;
+        res.error = error;
+        return res;
     }
 
     /**
@@ -115,6 +310,31 @@ public class ECGUtils
             Utils.errMsg("markOutliersFilter: List is null.");
             return false;
         }
+        MarkedSeries series = MarkedSeries.fromList(vals);
+        boolean res = markOutliers(series, threshold, hwin);
+        series.copyMarksTo(vals);
+        return res;
+    }
+
+    /**
+     * Marks the input series as to whether the value is within plus or minus
+     * threshold times the moving average of the surrounding points. That is,
+     * points outside the range [avg*(1-threshold), avg*(1+threshold] are
+     * marked.
+     * 
+     * @param vals A MarkedSeries of values. Typically the values will be
+     *            unmarked on entry.
+     * @param threshold The threshold.
+     * @param hwin The half window. The full window for the moving average is
+     *            2*hwin + 1;
+     * @return If successful or not.
+     */
+    public static boolean markOutliers(MarkedSeries vals, double threshold,
+        int hwin) {
+        if(vals == null) {
+            Utils.errMsg("markOutliersFilter: Series is null.");
+            return false;
+        }
 
         int nVals = vals.size();
         if(nVals == 0) return true;
@@ -124,42 +344,121 @@ public class ECGUtils
         int win = 2 * hwin + 1;
         int nProc = (win < nVals) ? win : nVals;
         MovingAverage ma = new MovingAverage(win);
-        ListIterator<MarkedDouble> li = vals.listIterator();
-        while(li.hasNext()) {
-            ma.newNum(li.next().getVal());
-            if(li.nextIndex() == nProc) {
-                break;
-            }
+        for(int i = 0; i < nProc; i++) {
+            ma.newNum(vals.getVal(i));
         }
         // Loop over the data
-        MarkedDouble md;
         double dVal, avg, maxVal, minVal;
-        li = vals.listIterator();
-        int curIndex = li.nextIndex();
-        md = li.next();
-        dVal = md.getVal();
-        while(true) {
+        for(int i = 0; i < nVals; i++) {
+            dVal = vals.getVal(i);
+            // Advance the moving average
+            if(i > hwin && i <= nVals - hwin - 1) {
+                ma.newNum(dVal);
+            }
             avg = ma.getAvg();
             minVal = (1.0 - threshold) * avg;
             maxVal = (1.0 + threshold) * avg;
             if(dVal > maxVal || dVal < minVal) {
-                md.setMarked(true);
+                vals.setMarked(i, true);
             }
-            // // DEBUG
-            // System.out.printf(
-            // "%d x=%.2f nProc=%d avg=%.2f minVal=%.2f maxVal=%.2f %s" + LS,
-            // curIndex, dVal, nProc, avg, minVal, maxVal, md.getMarked());
-            // Set up for the next value
-            if(!li.hasNext()) {
-                break;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the input series as to whether the value is within plus or minus
+     * threshold times the mean of the 2*hwin + 1 values centered on it. Near
+     * the ends the window is clamped to the available data. That is, points
+     * outside the range [avg*(1-threshold), avg*(1+threshold] are marked.
+     * 
+     * Uses prefix sums, so each window mean is found in constant time and the
+     * whole series is marked in O(n) independent of hwin.
+     * 
+     * @param vals A MarkedSeries of values. Typically the values will be
+     *            unmarked on entry.
+     * @param threshold The threshold.
+     * @param hwin The half window. The full window is 2*hwin + 1;
+     * @return If successful or not.
+     */
+    public static boolean markOutliersCentered(MarkedSeries vals,
+        double threshold, int hwin) {
+        if(vals == null) {
+            Utils.errMsg("markOutliersCentered: Series is null.");
+            return false;
+        }
+        int nVals = vals.size();
+        if(nVals == 0) return true;
+        double[] dVals = vals.getVals();
+
+        // prefix[i] is the sum of the first i values
+        double[] prefix = new double[nVals + 1];
+        for(int i = 0; i < nVals; i++) {
+            prefix[i + 1] = prefix[i] + dVals[i];
+        }
+
+        // Loop over the data
+        int lo, hi;
+        double dVal, avg, maxVal, minVal;
+        for(int i = 0; i < nVals; i++) {
+            lo = (i > hwin) ? i - hwin : 0;
+            hi = (i + hwin < nVals) ? i + hwin : nVals - 1;
+            avg = (prefix[hi + 1] - prefix[lo]) / (hi - lo + 1);
+            minVal = (1.0 - threshold) * avg;
+            maxVal = (1.0 + threshold) * avg;
+            dVal = dVals[i];
+            if(dVal > maxVal || dVal < minVal) {
+                vals.setMarked(i, true);
             }
-            curIndex = li.nextIndex();
-            md = li.next();
-            dVal = md.getVal();
-            // Advance the moving average
-            if(curIndex > hwin && curIndex <= nVals - hwin - 1) {
-                nProc++;
-                ma.newNum(dVal);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the input series as to whether the value is within plus or minus
+     * threshold times the median of the 2*hwin + 1 values centered on it. Near
+     * the ends the window is clamped to the available data. That is, points
+     * outside the range [med*(1-threshold), med*(1+threshold] are marked.
+     * Unlike the mean, the median is not pulled toward the outliers being
+     * tested.
+     * 
+     * The window is kept in a SlidingMedian, so each step is O(log n).
+     * 
+     * @param vals A MarkedSeries of values. Typically the values will be
+     *            unmarked on entry.
+     * @param threshold The threshold.
+     * @param hwin The half window. The full window is 2*hwin + 1;
+     * @return If successful or not.
+     */
+    public static boolean markOutliersMedian(MarkedSeries vals,
+        double threshold, int hwin) {
+        if(vals == null) {
+            Utils.errMsg("markOutliersMedian: Series is null.");
+            return false;
+        }
+        int nVals = vals.size();
+        if(nVals == 0) return true;
+        double[] dVals = vals.getVals();
+        SlidingMedian sm = new SlidingMedian(dVals, nVals);
+
+        // Initialize the window for i = 0
+        int nInit = (hwin < nVals) ? hwin + 1 : nVals;
+        for(int i = 0; i < nInit; i++) {
+            sm.add(i);
+        }
+        // Loop over the data
+        double dVal, med, maxVal, minVal;
+        for(int i = 0; i < nVals; i++) {
+            if(i > 0) {
+                // Slide the window
+                if(i + hwin < nVals) sm.add(i + hwin);
+                if(i - hwin - 1 >= 0) sm.remove(i - hwin - 1);
+            }
+            med = sm.getMedian();
+            minVal = (1.0 - threshold) * med;
+            maxVal = (1.0 + threshold) * med;
+            dVal = dVals[i];
+            if(dVal > maxVal || dVal < minVal) {
+                vals.setMarked(i, true);
             }
         }
         return true;
@@ -169,6 +468,8 @@ public class ECGUtils
     {
         boolean retVal;
         long endTime;
+        String errorMessage;
+        Exception error;
 
         public CreateHxMFileReturn(boolean retVal, long endTime) {
             this.retVal = retVal;
@@ -189,6 +490,20 @@ public class ECGUtils
             return endTime;
         }
 
+        /**
+         * @return A message describing the error or null if none.
+         */
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        /**
+         * @return The exception that caused the error or null if none.
+         */
+        public Exception getError() {
+            return error;
+        }
+
     }
 
     /**
@@ -223,6 +538,14 @@ public class ECGUtils
             if(!res) {
                 System.out.println("markOutliers failed for vals" + i);
             }
+            MarkedSeries series = new MarkedSeries(vals);
+            res = markOutliersCentered(series, frac, 2);
+            System.out.println("markOutliersCentered frac=" + frac
+                + " hwin=2 res=" + res);
+            for(int j = 0; j < series.size(); j++) {
+                System.out.println("val=" + series.getVal(j) + " "
+                    + series.getMarked(j));
+            }
             // li = list.listIterator();
             // while(li.hasNext()) {
             // md = li.next();
@@ -0,0 +1,237 @@
+package net.kenevans.ecgutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EliteHRVExportReader reads an Elite HRV CSV export in large chunks through a
+ * FileChannel and a reusable buffer and puts each complete session on a
+ * bounded queue. It is meant to run in its own thread. Since the queue is
+ * bounded, the reader waits when the consumer falls behind, and memory does
+ * not depend on the size of the file.
+ *
+ * Lines end with '\n', '\r', or "\r\n", as for BufferedReader.readLine.
+ * Lines with fewer than 2 fields or fewer than 2 RR values are counted as
+ * errors and skipped, as in ReadEliteHRV.processCSV. The last item put on the
+ * queue is always END or a Session with an error.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class EliteHRVExportReader implements Runnable
+{
+    /** Put on the queue after the last session. */
+    public static final Session END = new Session(null, null, 0);
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final BlockingQueue<Session> queue;
+    private final int bufferSize;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile int nLines;
+    private volatile int nErrors;
+
+    /**
+     * Session holds the time stamp and RR values for one line, or an error.
+     *
+     * @author Kenneth Evans, Jr.
+     */
+    public static class Session
+    {
+        private final String timeStamp;
+        private final int[] rrVals;
+        private final int lineNum;
+        private Exception error;
+
+        Session(String timeStamp, int[] rrVals, int lineNum) {
+            this.timeStamp = timeStamp;
+            this.rrVals = rrVals;
+            this.lineNum = lineNum;
+        }
+
+        /**
+         * @return The value of timeStamp.
+         */
+        public String getTimeStamp() {
+            return timeStamp;
+        }
+
+        /**
+         * @return The value of rrVals.
+         */
+        public int[] getRrVals() {
+            return rrVals;
+        }
+
+        /**
+         * @return The line number in the file.
+         */
+        public int getLineNum() {
+            return lineNum;
+        }
+
+        /**
+         * @return The error that stopped the reader or null if none.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * EliteHRVExportReader constructor.
+     *
+     * @param file The export file.
+     * @param queue The queue for the sessions. Should be bounded.
+     */
+    public EliteHRVExportReader(File file, BlockingQueue<Session> queue) {
+        this(file, queue, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * EliteHRVExportReader constructor.
+     *
+     * @param file The export file.
+     * @param queue The queue for the sessions. Should be bounded.
+     * @param bufferSize The size of the read buffer.
+     */
+    public EliteHRVExportReader(File file, BlockingQueue<Session> queue,
+        int bufferSize) {
+        this.file = file;
+        this.queue = queue;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void run() {
+        try {
+            read();
+            queue.put(END);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(Exception ex) {
+            Session session = new Session(null, null, nLines);
+            session.error = ex;
+            try {
+                queue.put(session);
+            } catch(InterruptedException ex1) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads the file and puts the sessions on the queue.
+     *
+     * @return The number of lines read.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private int read() throws IOException, InterruptedException {
+        FileInputStream fis = null;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(bufferSize);
+        byte[] bytes = byteBuffer.array();
+        // The current line. The export is ASCII except maybe for tags, which
+        // are not used, so each byte is taken as a char.
+        StringBuilder line = new StringBuilder(1024);
+        EliteHRVLineParser parser = new EliteHRVLineParser();
+        int lineNum = 0;
+        // Whether the last byte was a '\r', so a '\n' is part of the same end
+        boolean skipLF = false;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            int nRead;
+            while((nRead = channel.read(byteBuffer)) >= 0) {
+                for(int i = 0; i < nRead; i++) {
+                    byte b = bytes[i];
+                    if(b == '\n' && skipLF) {
+                        skipLF = false;
+                        continue;
+                    }
+                    if(b == '\n' || b == '\r') {
+                        skipLF = b == '\r';
+                        lineNum++;
+                        nLines = lineNum;
+                        processLine(line, lineNum, parser);
+                        line.setLength(0);
+                    } else {
+                        skipLF = false;
+                        line.append((char)(b & 0xFF));
+                    }
+                }
+                bytesRead.addAndGet(nRead);
+                byteBuffer.clear();
+            }
+            if(line.length() > 0) {
+                lineNum++;
+                nLines = lineNum;
+                processLine(line, lineNum, parser);
+            }
+        } finally {
+            if(fis != null) fis.close();
+        }
+        return lineNum;
+    }
+
+    /**
+     * Parses a line and puts the session on the queue if it is valid.
+     *
+     * @param line
+     * @param lineNum
+     * @param parser
+     * @throws InterruptedException
+     */
+    private void processLine(StringBuilder line, int lineNum,
+        EliteHRVLineParser parser) throws InterruptedException {
+        if(line.length() == 0) return;
+        parser.parse(line);
+        // First token is the date and time
+        // Second token is a comma-delimited string of raw RR values
+        // Other tokens may be user tags
+        if(parser.getNFields() < 2) {
+            nErrors++;
+            System.out.println("Error at line " + lineNum);
+            System.out.println("  " + line);
+            return;
+        }
+        if(parser.getNRrTokens() < 2) {
+            nErrors++;
+            System.out.println("Fewer than 2 RR values at line " + lineNum);
+            System.out.println("  " + line);
+            return;
+        }
+        if(parser.getRrError() != null) {
+            throw new NumberFormatException(parser.getRrError());
+        }
+        queue.put(new Session(parser.getTimeStamp(),
+            Arrays.copyOf(parser.getRrVals(), parser.getNRrVals()), lineNum));
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return The number of lines read so far.
+     */
+    public int getNLines() {
+        return nLines;
+    }
+
+    /**
+     * @return The number of bad lines so far.
+     */
+    public int getNErrors() {
+        return nErrors;
+    }
+
+}
@@ -0,0 +1,216 @@
+package net.kenevans.ecgutils;
+
+import java.util.Arrays;
+
+/**
+ * EliteHRVLineParser parses a line of an Elite HRV CSV export in a single pass
+ * over the characters. The first field is the time stamp. The second field is
+ * a quoted, comma-separated list of RR values, which are parsed directly into
+ * a reusable int array without creating substrings. Other fields, such as
+ * user tags, are skipped. Commas inside quotes do not separate fields.
+ *
+ * As with the regular expression ,(?=([^"]*"[^"]*")*[^"]*$) this replaces, a
+ * comma separates fields if it is followed by an even number of quotes. For a
+ * line with an odd number of quotes, such as a truncated one, that means the
+ * commas inside quotes separate fields rather than the ones outside, so the
+ * quotes are counted first.
+ *
+ * An instance is meant to be reused for each line and is not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class EliteHRVLineParser
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+    private String timeStamp;
+    private int[] rrVals = new int[DEFAULT_CAPACITY];
+    private int nRrVals;
+    private int nRrTokens;
+    private String rrError;
+    private int nFields;
+    // State for the current RR token
+    private int rrTokenIndex;
+    private int lastNonEmptyRrToken;
+    private boolean emptyRrToken;
+    private boolean rrComma;
+    private boolean tokenHasChars;
+    private boolean tokenHasDigits;
+    private boolean tokenHasSign;
+    private boolean tokenNegative;
+    private long tokenVal;
+
+    /**
+     * Parses the given line. The field and RR value counts follow String.split,
+     * so trailing empty fields and trailing empty RR values are not counted.
+     * Invalid RR values do not stop the parse but are reported by
+     * getRrError().
+     *
+     * @param line
+     */
+    public void parse(CharSequence line) {
+        int len = line.length();
+        int field = 0;
+        int fieldStart = 0;
+        int lastNonEmptyField = -1;
+        boolean inQuotes = false;
+        // Whether the separators are the commas inside quotes
+        boolean oddQuotes = false;
+        char c;
+        for(int i = 0; i < len; i++) {
+            if(line.charAt(i) == '"') {
+                oddQuotes = !oddQuotes;
+            }
+        }
+        timeStamp = null;
+        nRrVals = 0;
+        nRrTokens = 0;
+        rrError = null;
+        resetToken();
+        rrTokenIndex = 0;
+        lastNonEmptyRrToken = -1;
+        emptyRrToken = false;
+        rrComma = false;
+        for(int i = 0; i <= len; i++) {
+            c = (i < len) ? line.charAt(i) : ',';
+            if(c == '"' && i < len) {
+                inQuotes = !inQuotes;
+                continue;
+            }
+            if(c == ',' && (inQuotes == oddQuotes || i == len)) {
+                // End of a field
+                if(i > fieldStart) {
+                    lastNonEmptyField = field;
+                }
+                if(field == 0) {
+                    timeStamp = line.subSequence(0, i).toString();
+                } else if(field == 1) {
+                    endRrToken(line);
+                    nRrTokens = rrComma ? lastNonEmptyRrToken + 1 : 1;
+                }
+                field++;
+                fieldStart = i + 1;
+                continue;
+            }
+            if(field != 1) continue;
+
+            // Field 1: comma-separated RR values inside quotes
+            if(c == ',') {
+                rrComma = true;
+                endRrToken(line);
+                continue;
+            }
+            tokenHasChars = true;
+            if(rrError != null) continue;
+            if(c >= '0' && c <= '9') {
+                tokenHasDigits = true;
+                if(tokenVal <= Integer.MAX_VALUE + 1L) {
+                    tokenVal = tokenVal * 10 + (c - '0');
+                }
+            } else if((c == '-' || c == '+') && !tokenHasSign
+                && !tokenHasDigits) {
+                tokenHasSign = true;
+                tokenNegative = c == '-';
+            } else {
+                rrError = "Invalid RR value in: " + line;
+            }
+        }
+        nFields = lastNonEmptyField + 1;
+    }
+
+    /**
+     * Finishes the current RR token in field 1.
+     *
+     * @param line For error messages.
+     */
+    private void endRrToken(CharSequence line) {
+        if(tokenHasChars) {
+            lastNonEmptyRrToken = rrTokenIndex;
+            if(rrError == null) {
+                if(emptyRrToken) {
+                    // Integer.parseInt would fail on the empty one
+                    rrError = "Empty RR value in: " + line;
+                } else if(!tokenHasDigits) {
+                    rrError = "Invalid RR value in: " + line;
+                } else {
+                    long val = tokenNegative ? -tokenVal : tokenVal;
+                    if(val > Integer.MAX_VALUE || val < Integer.MIN_VALUE) {
+                        rrError = "RR value out of range in: " + line;
+                    } else {
+                        addRrVal((int)val);
+                    }
+                }
+            }
+        } else {
+            emptyRrToken = true;
+        }
+        rrTokenIndex++;
+        resetToken();
+    }
+
+    private void resetToken() {
+        tokenHasChars = false;
+        tokenHasDigits = false;
+        tokenHasSign = false;
+        tokenNegative = false;
+        tokenVal = 0;
+    }
+
+    private void addRrVal(int val) {
+        if(nRrVals == rrVals.length) {
+            rrVals = Arrays.copyOf(rrVals, 2 * rrVals.length);
+        }
+        rrVals[nRrVals++] = val;
+    }
+
+    /**
+     * @return The first field, including any quotes.
+     */
+    public String getTimeStamp() {
+        return timeStamp;
+    }
+
+    /**
+     * Returns the RR values. The array is reused and may be longer than
+     * getNRrVals().
+     *
+     * @return
+     */
+    public int[] getRrVals() {
+        return rrVals;
+    }
+
+    /**
+     * Returns the number of RR values. If getRrError() is null, this is the
+     * same as the number of RR tokens.
+     *
+     * @return
+     */
+    public int getNRrVals() {
+        return nRrVals;
+    }
+
+    /**
+     * Returns the number of comma-separated tokens in the second field, as
+     * String.split would count them.
+     *
+     * @return
+     */
+    public int getNRrTokens() {
+        return nRrTokens;
+    }
+
+    /**
+     * @return A message if an RR token is not an integer, otherwise null.
+     */
+    public String getRrError() {
+        return rrError;
+    }
+
+    /**
+     * @return The number of fields, not counting trailing empty ones.
+     */
+    public int getNFields() {
+        return nFields;
+    }
+
+}
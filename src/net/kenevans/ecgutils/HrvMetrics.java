@@ -0,0 +1,187 @@
+package net.kenevans.ecgutils;
+
+import java.util.BitSet;
+
+/**
+ * HrvMetrics calculates the HR and HRV metrics for a session in a single pass
+ * over the RR values, skipping the marked ones, without making intermediate
+ * arrays. The successive differences are taken between consecutive unmarked
+ * values.
+ *
+ * The results are the same as making arrays of the unmarked RR values, the
+ * corresponding HR values, and their successive differences and using
+ * Statistics on them as ReadEliteHRV did originally, since the same sums are
+ * accumulated in the same order and finished the same way. In particular, the
+ * mean is sum / n and the SDNN is sqrt((sumsq - n * mean^2) / (n - 1)), as in
+ * the original Statistics, rather than the more accurate two-pass or Welford
+ * forms, so the summary values do not change.
+ * An instance may be reused for each session and is not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HrvMetrics
+{
+    /** Successive differences larger than this in ms are counted in NN50. */
+    public static final double NN50_THRESHOLD = 50;
+
+    private double minHr;
+    private double avgHr;
+    private double maxHr;
+    private double sdnn;
+    private double rmssd;
+    private int nn50;
+    private double pnn50;
+    private int nRrVals;
+    private double sd1;
+    private double sd2;
+
+    /**
+     * Calculates the metrics for the first n RR values.
+     *
+     * @param rrVals The RR values in ms.
+     * @param n The number of values to use.
+     * @param marks Bit i is set if value i should be skipped. May be null.
+     */
+    public void compute(double[] rrVals, int n, BitSet marks) {
+        int nUnmarked = 0;
+        double rr, hr, sd;
+        double prevRr = 0;
+        // HR min, max, and sum
+        double hrMin = 0, hrMax = 0, hrSum = 0;
+        // RR sum and sum of squares
+        double rrSum = 0, rrSumsq = 0;
+        // Sum and sum of squares of the successive differences
+        double sdSum = 0, sdSumsq = 0;
+        int nnCount = 0;
+        for(int i = 0; i < n; i++) {
+            if(marks != null && marks.get(i)) continue;
+            rr = rrVals[i];
+            hr = 60000. / rr;
+            if(nUnmarked == 0) {
+                hrMin = hr;
+                hrMax = hr;
+            } else {
+                if(hr > hrMax) hrMax = hr;
+                if(hr < hrMin) hrMin = hr;
+                sd = rr - prevRr;
+                if(Math.abs(sd) > NN50_THRESHOLD) nnCount++;
+                sdSum += sd;
+                sdSumsq += sd * sd;
+            }
+            nUnmarked++;
+            hrSum += hr;
+            rrSum += rr;
+            rrSumsq += rr * rr;
+            prevRr = rr;
+        }
+        int nSd = nUnmarked - 1;
+        minHr = hrMin;
+        maxHr = hrMax;
+        if(nUnmarked == 0) {
+            avgHr = 0.0;
+            sdnn = 0.0;
+        } else {
+            avgHr = hrSum / nUnmarked;
+            double rrMean = rrSum / nUnmarked;
+            sdnn = Math.sqrt((rrSumsq - nUnmarked * rrMean * rrMean) / nSd);
+        }
+        rmssd = (nSd <= 0) ? 0.0 : Math.sqrt(sdSumsq / nSd);
+        nn50 = nnCount;
+        pnn50 = (double)nnCount / nSd;
+        nRrVals = nUnmarked;
+        // Poincare plot widths: SD1^2 is half the variance of the successive
+        // differences and SD1^2 + SD2^2 is twice the variance of the RR values
+        if(nSd >= 2) {
+            double sdVar = (sdSumsq - sdSum * sdSum / nSd) / (nSd - 1);
+            double sd1Sq = .5 * Math.max(sdVar, 0);
+            sd1 = Math.sqrt(sd1Sq);
+            sd2 = Math.sqrt(Math.max(2 * sdnn * sdnn - sd1Sq, 0));
+        } else {
+            sd1 = Double.NaN;
+            sd2 = Double.NaN;
+        }
+    }
+
+    /**
+     * Calculates the metrics for the unmarked values in a MarkedSeries.
+     *
+     * @param rrSeries The RR values in ms.
+     */
+    public void compute(MarkedSeries rrSeries) {
+        compute(rrSeries.getVals(), rrSeries.size(), rrSeries.getMarks());
+    }
+
+    /**
+     * @return The minimum HR in beats/min.
+     */
+    public double getMinHr() {
+        return minHr;
+    }
+
+    /**
+     * @return The mean HR in beats/min.
+     */
+    public double getAvgHr() {
+        return avgHr;
+    }
+
+    /**
+     * @return The maximum HR in beats/min.
+     */
+    public double getMaxHr() {
+        return maxHr;
+    }
+
+    /**
+     * @return The sample standard deviation of the RR values.
+     */
+    public double getSdnn() {
+        return sdnn;
+    }
+
+    /**
+     * @return The root mean square of the successive differences.
+     */
+    public double getRmssd() {
+        return rmssd;
+    }
+
+    /**
+     * @return The number of successive differences larger than 50 ms.
+     */
+    public int getNn50() {
+        return nn50;
+    }
+
+    /**
+     * @return NN50 divided by the number of successive differences, as a
+     *         fraction, not a percent.
+     */
+    public double getPnn50() {
+        return pnn50;
+    }
+
+    /**
+     * @return The Poincare plot SD1, the spread perpendicular to the line of
+     *         identity, or NaN if there are fewer than 3 values.
+     */
+    public double getSd1() {
+        return sd1;
+    }
+
+    /**
+     * @return The Poincare plot SD2, the spread along the line of identity, or
+     *         NaN if there are fewer than 3 values.
+     */
+    public double getSd2() {
+        return sd2;
+    }
+
+    /**
+     * @return The number of unmarked RR values used.
+     */
+    public int getNRrVals() {
+        return nRrVals;
+    }
+
+}
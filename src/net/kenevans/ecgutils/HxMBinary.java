@@ -0,0 +1,325 @@
+package net.kenevans.ecgutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+
+/**
+ * HxMBinary reads and writes a compact binary form of an HxM session and
+ * converts between it and the CSV form written by ECGUtils.writeHxMFile. The
+ * layout is:
+ *
+ * <pre>
+ * "HXMB"         4 bytes magic
+ * version        1 byte
+ * startTime      8 bytes, big endian
+ * n              varint, the number of lines
+ * times          n zigzag varints, each the difference from the previous time
+ *                (the first is from startTime)
+ * hrs            n zigzag varints
+ * rrs            n zigzag varints
+ * marks          (n + 7) / 8 bytes, bit i is set if line i is marked
+ * </pre>
+ *
+ * Marked lines are written as blank lines in the CSV. When converting from
+ * CSV, a blank line becomes a marked line with the previous time and zero HR
+ * and RR, so the CSV round trip is lossless.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMBinary
+{
+    private static final byte[] MAGIC = {'H', 'X', 'M', 'B'};
+    private static final int VERSION = 1;
+    /** The usual extension for binary HxM files. */
+    public static final String EXTENSION = "hxmb";
+
+    /**
+     * Writes the session to the given file.
+     *
+     * @param file
+     * @param session
+     * @throws IOException
+     */
+    public static void write(File file, HxMSession session)
+        throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+            write(out, session);
+        } finally {
+            if(out != null) out.close();
+        }
+    }
+
+    /**
+     * Writes the session to the given DataOutputStream.
+     *
+     * @param out
+     * @param session
+     * @throws IOException
+     */
+    public static void write(DataOutputStream out, HxMSession session)
+        throws IOException {
+        int n = session.size();
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(session.getStartTime());
+        writeVarint(out, n);
+        long last = session.getStartTime();
+        for(int i = 0; i < n; i++) {
+            long time = session.getTime(i);
+            writeVarint(out, zigzag(time - last));
+            last = time;
+        }
+        for(int i = 0; i < n; i++) {
+            writeVarint(out, zigzag(session.getHr(i)));
+        }
+        for(int i = 0; i < n; i++) {
+            writeVarint(out, zigzag(session.getRr(i)));
+        }
+        int bits = 0;
+        for(int i = 0; i < n; i++) {
+            if(session.getMarked(i)) {
+                bits |= 1 << (i & 7);
+            }
+            if((i & 7) == 7) {
+                out.writeByte(bits);
+                bits = 0;
+            }
+        }
+        if((n & 7) != 0) {
+            out.writeByte(bits);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a session from the given file.
+     *
+     * @param file
+     * @return The HxMSession.
+     * @throws IOException
+     */
+    public static HxMSession read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            return read(in);
+        } finally {
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * Reads a session from the given DataInputStream.
+     *
+     * @param in
+     * @return The HxMSession.
+     * @throws IOException
+     */
+    public static HxMSession read(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for(int i = 0; i < MAGIC.length; i++) {
+            if(magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary HxM file");
+            }
+        }
+        int version = in.readUnsignedByte();
+        if(version != VERSION) {
+            throw new IOException("Unsupported binary HxM version " + version);
+        }
+        long startTime = in.readLong();
+        long nLong = readVarint(in);
+        if(nLong < 0 || nLong > Integer.MAX_VALUE) {
+            throw new IOException("Invalid number of lines " + nLong);
+        }
+        int n = (int)nLong;
+        long[] times = new long[n];
+        long last = startTime;
+        for(int i = 0; i < n; i++) {
+            last += unzigzag(readVarint(in));
+            times[i] = last;
+        }
+        long[] hrs = new long[n];
+        for(int i = 0; i < n; i++) {
+            hrs[i] = unzigzag(readVarint(in));
+        }
+        HxMSession session = new HxMSession(startTime, n);
+        for(int i = 0; i < n; i++) {
+            session.add(times[i], hrs[i], unzigzag(readVarint(in)), false);
+        }
+        int bits = 0;
+        for(int i = 0; i < n; i++) {
+            if((i & 7) == 0) {
+                bits = in.readUnsignedByte();
+            }
+            if((bits & (1 << (i & 7))) != 0) {
+                session.getMarks().set(i);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Writes the session as an HxM CSV file. The output is the same as
+     * ECGUtils.writeHxMFile writes.
+     *
+     * @param file
+     * @param session
+     * @throws IOException
+     */
+    public static void writeCsv(File file, HxMSession session)
+        throws IOException {
+        HxMWriter out = null;
+        try {
+            out = new HxMWriter(file);
+            int n = session.size();
+            for(int i = 0; i < n; i++) {
+                if(session.getMarked(i)) {
+                    out.writeBlankLine();
+                } else {
+                    out.writeLine(session.getTime(i), session.getHr(i),
+                        session.getRr(i));
+                }
+            }
+        } finally {
+            if(out != null) out.close();
+        }
+    }
+
+    /**
+     * Reads an HxM CSV file of the form written by ECGUtils.writeHxMFile.
+     *
+     * @param file
+     * @param startTime The start time of the session, which is not in the CSV
+     *            file.
+     * @return The HxMSession.
+     * @throws IOException If a line is not of the expected form.
+     */
+    public static HxMSession readCsv(File file, long startTime)
+        throws IOException {
+        HxMSession session = new HxMSession(startTime);
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line;
+            int lineNum = 0;
+            long time = startTime;
+            String[] tokens;
+            HxMTimeParser timeParser = new HxMTimeParser();
+            while((line = in.readLine()) != null) {
+                lineNum++;
+                if(line.length() == 0) {
+                    session.add(time, 0, 0, true);
+                    continue;
+                }
+                tokens = line.split(",");
+                if(tokens.length != 5 || !tokens[3].equals("-1")
+                    || !tokens[4].equals("-1")) {
+                    throw new IOException(
+                        "Unsupported HxM line " + lineNum + ": " + line);
+                }
+                try {
+                    time = timeParser.parse(tokens[0]);
+                    session.add(time, Long.parseLong(tokens[1]),
+                        Long.parseLong(tokens[2]), false);
+                } catch(ParseException | NumberFormatException ex) {
+                    throw new IOException(
+                        "Invalid HxM line " + lineNum + ": " + line, ex);
+                }
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        return session;
+    }
+
+    /**
+     * Converts a binary HxM file to CSV.
+     *
+     * @param binFile
+     * @param csvFile
+     * @throws IOException
+     */
+    public static void toCsv(File binFile, File csvFile) throws IOException {
+        writeCsv(csvFile, read(binFile));
+    }
+
+    /**
+     * Converts an HxM CSV file to binary.
+     *
+     * @param csvFile
+     * @param startTime The start time of the session, which is not in the CSV
+     *            file.
+     * @param binFile
+     * @throws IOException
+     */
+    public static void fromCsv(File csvFile, long startTime, File binFile)
+        throws IOException {
+        write(binFile, readCsv(csvFile, startTime));
+    }
+
+    /**
+     * Returns the binary file that goes with the given CSV file. It has the
+     * same name with the extension replaced by EXTENSION.
+     *
+     * @param csvFile
+     * @return
+     */
+    public static File binaryFileFor(File csvFile) {
+        String name = csvFile.getName();
+        int pos = name.lastIndexOf('.');
+        if(pos > 0) {
+            name = name.substring(0, pos);
+        }
+        return new File(csvFile.getParentFile(), name + "." + EXTENSION);
+    }
+
+    private static long zigzag(long val) {
+        return (val << 1) ^ (val >> 63);
+    }
+
+    private static long unzigzag(long val) {
+        return (val >>> 1) ^ -(val & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long val)
+        throws IOException {
+        while((val & ~0x7FL) != 0) {
+            out.write((int)((val & 0x7F) | 0x80));
+            val >>>= 7;
+        }
+        out.write((int)val);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long val = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException();
+            }
+            val |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return val;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
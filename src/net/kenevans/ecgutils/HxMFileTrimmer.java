@@ -0,0 +1,286 @@
+package net.kenevans.ecgutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * HxMFileTrimmer copies the part of an HxM or BCM session file between a start
+ * and end time to a new file. The data lines are assumed to be in time order,
+ * so the start and end of the window are found by binary search on byte
+ * offsets, and only the lines near the probes are parsed. The header, which is
+ * the lines starting with # and blank lines before the first data line, is
+ * copied as well. The bytes are copied unchanged using FileChannel.transferTo,
+ * so the work depends on the size of the window rather than the size of the
+ * file.
+ *
+ * Unlike the line-by-line trim in MakeHxMSessionFromPDFImage, blank and #
+ * lines outside the header and the window are not copied.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMFileTrimmer
+{
+    /** When the search range is smaller than this, scan forward. */
+    private static final long SCAN_SIZE = 4096;
+    private static final int BUFFER_SIZE = 512;
+
+    private final FileChannel channel;
+    private final long size;
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final HxMTimeParser timeParser = new HxMTimeParser();
+    /** The offset of the first data line. */
+    private long headerEnd;
+    /** Set by readDataLine to the start of the data line found. */
+    private long dataLineStart;
+    /** Set by readDataLine to the start of the line after it. */
+    private long dataLineEnd;
+
+    private HxMFileTrimmer(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Copies the header and the lines with times in [startTime, endTime] from
+     * inFile to outFile.
+     *
+     * @param inFile The file to trim.
+     * @param outFile The trimmed file. It is created or truncated.
+     * @param startTime The start time in ms.
+     * @param endTime The end time in ms.
+     * @return The number of bytes written.
+     * @throws IOException On an I/O error or if a time cannot be parsed.
+     */
+    public static long trim(File inFile, File outFile, long startTime,
+        long endTime) throws IOException {
+        FileInputStream fis = null;
+        FileOutputStream fos = null;
+        try {
+            fis = new FileInputStream(inFile);
+            HxMFileTrimmer trimmer = new HxMFileTrimmer(fis.getChannel());
+            trimmer.findHeaderEnd();
+            long start = trimmer.findFirstAfter(startTime - 1);
+            long end = trimmer.findFirstAfter(endTime);
+            if(end < start) end = start;
+
+            fos = new FileOutputStream(outFile);
+            FileChannel outChannel = fos.getChannel();
+            long nWritten = transfer(trimmer.channel, 0, trimmer.headerEnd,
+                outChannel);
+            nWritten += transfer(trimmer.channel, start, end - start,
+                outChannel);
+            return nWritten;
+        } finally {
+            try {
+                if(fis != null) fis.close();
+            } finally {
+                if(fos != null) fos.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the times of the first and last data lines of a file. Only the
+     * start and end of the file are read.
+     *
+     * @param file The file.
+     * @return {first, last} in ms or null if there are no data lines.
+     * @throws IOException On an I/O error or if a time cannot be parsed.
+     */
+    public static long[] timeRange(File file) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            HxMFileTrimmer trimmer = new HxMFileTrimmer(fis.getChannel());
+            trimmer.findHeaderEnd();
+            String timeString = trimmer.readDataLine(trimmer.headerEnd);
+            if(timeString == null) return null;
+            long first = trimmer.parseTime(timeString);
+            return new long[] {first, trimmer.findLastTime()};
+        } finally {
+            if(fis != null) fis.close();
+        }
+    }
+
+    /**
+     * Finds the end of the header, which is the start of the first data line.
+     *
+     * @throws IOException
+     */
+    private void findHeaderEnd() throws IOException {
+        headerEnd = 0;
+        if(readDataLine(0) == null) {
+            headerEnd = size;
+        } else {
+            headerEnd = dataLineStart;
+        }
+    }
+
+    /**
+     * Finds the start of the first data line with a time greater than time,
+     * or the end of the file if there is none.
+     *
+     * @param time
+     * @return The offset.
+     * @throws IOException
+     */
+    private long findFirstAfter(long time) throws IOException {
+        // Invariant: every data line starting before lo has a time <= time
+        long lo = headerEnd;
+        long hi = size;
+        while(hi - lo > SCAN_SIZE) {
+            long mid = (lo + hi) >>> 1;
+            String timeString = readDataLine(lineStartAtOrAfter(mid));
+            if(timeString != null && parseTime(timeString) <= time) {
+                lo = dataLineEnd;
+            } else {
+                hi = mid;
+            }
+        }
+        // Scan forward from lo
+        long pos = lineStartAtOrAfter(lo);
+        String timeString;
+        while((timeString = readDataLine(pos)) != null) {
+            if(parseTime(timeString) > time) {
+                return dataLineStart;
+            }
+            pos = dataLineEnd;
+        }
+        return size;
+    }
+
+    /**
+     * Finds the time of the last data line by scanning forward from
+     * successively earlier offsets near the end. There must be at least one
+     * data line.
+     *
+     * @return The time in ms.
+     * @throws IOException
+     */
+    private long findLastTime() throws IOException {
+        long back = SCAN_SIZE;
+        while(true) {
+            long pos = lineStartAtOrAfter(Math.max(size - back, headerEnd));
+            String timeString;
+            String lastTimeString = null;
+            while((timeString = readDataLine(pos)) != null) {
+                lastTimeString = timeString;
+                pos = dataLineEnd;
+            }
+            if(lastTimeString != null) {
+                return parseTime(lastTimeString);
+            }
+            back *= 2;
+        }
+    }
+
+    /**
+     * Returns the start of the first line starting at or after pos.
+     *
+     * @param pos
+     * @return The offset, which is size if there is none.
+     * @throws IOException
+     */
+    private long lineStartAtOrAfter(long pos) throws IOException {
+        if(pos <= headerEnd) return headerEnd;
+        long nl = indexOfNewline(pos - 1);
+        return (nl < 0) ? size : nl + 1;
+    }
+
+    /**
+     * Finds the first data line starting at or after the line start pos,
+     * skipping blank lines and lines starting with #. Sets dataLineStart and
+     * dataLineEnd.
+     *
+     * @param pos The start of a line.
+     * @return The first token of the data line, which is the time, or null if
+     *         there are no more data lines.
+     * @throws IOException
+     */
+    private String readDataLine(long pos) throws IOException {
+        while(pos < size) {
+            byteBuffer.clear();
+            int nRead = channel.read(byteBuffer, pos);
+            if(nRead <= 0) break;
+            byte[] bytes = byteBuffer.array();
+            // Skip leading white space as line.trim() would
+            int i = 0;
+            while(i < nRead && bytes[i] != '\n' && bytes[i] <= ' ') {
+                i++;
+            }
+            if(i < nRead && bytes[i] != '\n' && bytes[i] != '#') {
+                int tokenStart = i;
+                while(i < nRead && bytes[i] != ','
+                    && bytes[i] != '\n' && bytes[i] != '\r') {
+                    i++;
+                }
+                if(i < nRead || pos + nRead >= size) {
+                    String token = new String(bytes, tokenStart,
+                        i - tokenStart, StandardCharsets.US_ASCII).trim();
+                    dataLineStart = pos;
+                    long nl = indexOfNewline(pos + i);
+                    dataLineEnd = (nl < 0) ? size : nl + 1;
+                    return token;
+                }
+                throw new IOException("Line too long at offset " + pos);
+            }
+            // Blank or comment line, go to the next one
+            long nl = indexOfNewline(pos + i);
+            pos = (nl < 0) ? size : nl + 1;
+        }
+        dataLineStart = size;
+        dataLineEnd = size;
+        return null;
+    }
+
+    /**
+     * Returns the offset of the first newline at or after pos or -1 if there
+     * is none.
+     *
+     * @param pos
+     * @return
+     * @throws IOException
+     */
+    private long indexOfNewline(long pos) throws IOException {
+        while(pos < size) {
+            byteBuffer.clear();
+            int nRead = channel.read(byteBuffer, pos);
+            if(nRead <= 0) break;
+            byte[] bytes = byteBuffer.array();
+            for(int i = 0; i < nRead; i++) {
+                if(bytes[i] == '\n') {
+                    return pos + i;
+                }
+            }
+            pos += nRead;
+        }
+        return -1;
+    }
+
+    private long parseTime(String timeString) throws IOException {
+        try {
+            return timeParser.parse(timeString);
+        } catch(ParseException ex) {
+            throw new IOException("Failed to parse time: " + timeString, ex);
+        }
+    }
+
+    private static long transfer(FileChannel in, long position, long count,
+        FileChannel out) throws IOException {
+        long nTransferred = 0;
+        while(nTransferred < count) {
+            long n = in.transferTo(position + nTransferred,
+                count - nTransferred, out);
+            if(n <= 0) break;
+            nTransferred += n;
+        }
+        return nTransferred;
+    }
+
+}
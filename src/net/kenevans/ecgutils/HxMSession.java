@@ -0,0 +1,121 @@
+package net.kenevans.ecgutils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * HxMSession holds the data lines of an HxM file in columns: the time in ms,
+ * the heart rate, and the RR interval for each line, plus a mark for lines
+ * that are written as blank lines.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMSession
+{
+    private static final int DEFAULT_CAPACITY = 256;
+    private final long startTime;
+    private long[] times;
+    private long[] hrs;
+    private long[] rrs;
+    private final BitSet marks = new BitSet();
+    private int size;
+
+    /**
+     * HxMSession constructor.
+     *
+     * @param startTime The start time of the session.
+     */
+    public HxMSession(long startTime) {
+        this(startTime, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * HxMSession constructor.
+     *
+     * @param startTime The start time of the session.
+     * @param capacity The initial capacity.
+     */
+    public HxMSession(long startTime, int capacity) {
+        this.startTime = startTime;
+        capacity = Math.max(capacity, 1);
+        times = new long[capacity];
+        hrs = new long[capacity];
+        rrs = new long[capacity];
+    }
+
+    /**
+     * Adds a line.
+     *
+     * @param time The time in ms.
+     * @param hr The heart rate.
+     * @param rr The RR interval in BLE units of 1/1024 sec.
+     * @param marked Whether the line is marked.
+     */
+    public void add(long time, long hr, long rr, boolean marked) {
+        if(size == times.length) {
+            int capacity = 2 * times.length;
+            times = Arrays.copyOf(times, capacity);
+            hrs = Arrays.copyOf(hrs, capacity);
+            rrs = Arrays.copyOf(rrs, capacity);
+        }
+        times[size] = time;
+        hrs[size] = hr;
+        rrs[size] = rr;
+        marks.set(size, marked);
+        size++;
+    }
+
+    /**
+     * @return The value of startTime.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The number of lines.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i
+     * @return The time in ms for line i.
+     */
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * @param i
+     * @return The heart rate for line i.
+     */
+    public long getHr(int i) {
+        return hrs[i];
+    }
+
+    /**
+     * @param i
+     * @return The RR interval for line i.
+     */
+    public long getRr(int i) {
+        return rrs[i];
+    }
+
+    /**
+     * @param i
+     * @return Whether line i is marked.
+     */
+    public boolean getMarked(int i) {
+        return marks.get(i);
+    }
+
+    /**
+     * @return The BitSet of marks.
+     */
+    public BitSet getMarks() {
+        return marks;
+    }
+
+}
@@ -0,0 +1,167 @@
+package net.kenevans.ecgutils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * HxMTimeFormatter formats times in ms as yyyy-MM-dd HH:mm:ss.SSS in the
+ * default time zone, the same as ECGUtils.getHxMDateTimeFormat(), but writes
+ * the ASCII bytes directly into a byte array.
+ *
+ * The formatted date and hour are cached, so successive times in the same hour
+ * only need the minutes, seconds, and ms written. A Calendar is only used when
+ * the hour changes. An instance is not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMTimeFormatter
+{
+    /** The length of a formatted time. */
+    public static final int LENGTH = 23;
+    private static final long MS_PER_HOUR = 3600000L;
+
+    private final TimeZone tz;
+    private final GregorianCalendar cal;
+    /** Scratch buffer for format(long). */
+    private final byte[] scratch = new byte[LENGTH + 16];
+    /** The bytes for yyyy-MM-dd HH: for the cached hour. */
+    private final byte[] hourPrefix = new byte[24];
+    private int hourPrefixLength;
+    /** The start of the cached hour in ms. */
+    private long hourStart = 1;
+    /** The end (exclusive) of the cached hour in ms. */
+    private long hourEnd = 0;
+
+    /**
+     * HxMTimeFormatter constructor that uses the default time zone.
+     */
+    public HxMTimeFormatter() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * HxMTimeFormatter constructor.
+     *
+     * @param tz The TimeZone to use.
+     */
+    public HxMTimeFormatter(TimeZone tz) {
+        this.tz = tz;
+        cal = new GregorianCalendar(tz);
+    }
+
+    /**
+     * Writes the formatted time into buf starting at off.
+     *
+     * @param time The time in ms.
+     * @param buf The destination. Must have room for at least LENGTH bytes, or
+     *            up to 10 more for years past 9999.
+     * @param off Where to start.
+     * @return The offset after the last byte written.
+     */
+    public int format(long time, byte[] buf, int off) {
+        int msInHour;
+        if(time >= hourStart && time < hourEnd) {
+            msInHour = (int)(time - hourStart);
+        } else if(setHour(time)) {
+            msInHour = (int)(time - hourStart);
+        } else {
+            // The offset changes within this hour, so use the Calendar
+            cal.setTimeInMillis(time);
+            off = writeHourPrefix(buf, off);
+            off = write2(buf, off, cal.get(Calendar.MINUTE));
+            buf[off++] = ':';
+            off = write2(buf, off, cal.get(Calendar.SECOND));
+            buf[off++] = '.';
+            return write3(buf, off, cal.get(Calendar.MILLISECOND));
+        }
+        System.arraycopy(hourPrefix, 0, buf, off, hourPrefixLength);
+        off += hourPrefixLength;
+        int min = msInHour / 60000;
+        msInHour -= min * 60000;
+        int sec = msInHour / 1000;
+        off = write2(buf, off, min);
+        buf[off++] = ':';
+        off = write2(buf, off, sec);
+        buf[off++] = '.';
+        return write3(buf, off, msInHour - sec * 1000);
+    }
+
+    /**
+     * Convenience method that returns the formatted time as a String. Uses a
+     * scratch buffer in this instance.
+     *
+     * @param time The time in ms.
+     * @return
+     */
+    public String format(long time) {
+        int len = format(time, scratch, 0);
+        return new String(scratch, 0, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Sets the cached hour to the one containing time.
+     *
+     * @param time
+     * @return False if the UTC offset changes within the hour, in which case
+     *         the cache is invalid but the Calendar is set to the hour.
+     */
+    private boolean setHour(long time) {
+        int offset = tz.getOffset(time);
+        long local = time + offset;
+        long start = time
+            - ((local % MS_PER_HOUR) + MS_PER_HOUR) % MS_PER_HOUR;
+        long end = start + MS_PER_HOUR;
+        cal.setTimeInMillis(time);
+        hourPrefixLength = writeHourPrefix(hourPrefix, 0);
+        if(tz.getOffset(start) != offset || tz.getOffset(end - 1) != offset) {
+            hourStart = 1;
+            hourEnd = 0;
+            return false;
+        }
+        hourStart = start;
+        hourEnd = end;
+        return true;
+    }
+
+    /**
+     * Writes yyyy-MM-dd HH: from the Calendar.
+     *
+     * @param buf
+     * @param off
+     * @return The offset after the last byte written.
+     */
+    private int writeHourPrefix(byte[] buf, int off) {
+        int year = cal.get(Calendar.YEAR);
+        if(year > 9999) {
+            String yearString = Integer.toString(year);
+            for(int i = 0; i < yearString.length(); i++) {
+                buf[off++] = (byte)yearString.charAt(i);
+            }
+        } else {
+            off = write2(buf, off, year / 100);
+            off = write2(buf, off, year % 100);
+        }
+        buf[off++] = '-';
+        off = write2(buf, off, cal.get(Calendar.MONTH) + 1);
+        buf[off++] = '-';
+        off = write2(buf, off, cal.get(Calendar.DAY_OF_MONTH));
+        buf[off++] = ' ';
+        off = write2(buf, off, cal.get(Calendar.HOUR_OF_DAY));
+        buf[off++] = ':';
+        return off;
+    }
+
+    private static int write2(byte[] buf, int off, int val) {
+        buf[off++] = (byte)('0' + val / 10);
+        buf[off++] = (byte)('0' + val % 10);
+        return off;
+    }
+
+    private static int write3(byte[] buf, int off, int val) {
+        buf[off++] = (byte)('0' + val / 100);
+        return write2(buf, off, val % 100);
+    }
+
+}
@@ -0,0 +1,231 @@
+package net.kenevans.ecgutils;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * HxMTimeParser parses times of the form yyyy-MM-dd HH:mm:ss.SSS used in HxM
+ * files into ms. The results are the same as those of SimpleDateFormat.parse
+ * with that pattern, including the later, standard-time instant for the
+ * repeated hour when the clocks go back, and anything after the time is
+ * ignored.
+ *
+ * Times in the usual fixed-width form are read directly from the
+ * CharSequence. The start of the last day seen is found with the Calendar of
+ * the SimpleDateFormat and cached, so times in the same day only need the time
+ * of day added, unless the UTC offset changes within a day of it, in which
+ * case the Calendar is used for each time. Anything else, such as fields with
+ * fewer digits or out of range, is parsed by the lenient SimpleDateFormat
+ * itself.
+ *
+ * An instance is not thread safe. ECGUtils.parseHxMTime uses one per thread.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMTimeParser
+{
+    /** The length of a fixed-width time. */
+    public static final int LENGTH = 23;
+    private static final long MS_PER_HOUR = 3600000L;
+    private static final long MS_PER_DAY = 86400000L;
+
+    private final SimpleDateFormat format;
+    private final Calendar cal;
+    private final TimeZone tz;
+    /** The cached day as yyyyMMdd or -1 if none. */
+    private int cachedDay = -1;
+    /** The time in ms at local midnight of the cached day. */
+    private long cachedDayStart;
+    /** Whether the UTC offset is constant within a day of the cached day. */
+    private boolean cachedDayLinear;
+
+    /**
+     * HxMTimeParser constructor that uses the default time zone.
+     */
+    public HxMTimeParser() {
+        this(new SimpleDateFormat(ECGUtils.HXM_DATE_TIME_PATTERN));
+    }
+
+    /**
+     * HxMTimeParser constructor.
+     *
+     * @param tz The TimeZone to use.
+     */
+    public HxMTimeParser(TimeZone tz) {
+        this(newFormat(tz));
+    }
+
+    /**
+     * HxMTimeParser constructor that gives the same results as the given
+     * SimpleDateFormat, which should have the pattern
+     * ECGUtils.HXM_DATE_TIME_PATTERN. It is used for times that are not in the
+     * fixed-width form, so it should belong to the same thread, and its time
+     * zone should not be changed afterward.
+     *
+     * @param format The SimpleDateFormat.
+     */
+    public HxMTimeParser(SimpleDateFormat format) {
+        this.format = format;
+        this.cal = (Calendar)format.getCalendar().clone();
+        this.tz = cal.getTimeZone();
+    }
+
+    private static SimpleDateFormat newFormat(TimeZone tz) {
+        SimpleDateFormat format = new SimpleDateFormat(
+            ECGUtils.HXM_DATE_TIME_PATTERN);
+        format.setTimeZone(tz);
+        return format;
+    }
+
+    /**
+     * Parses a time at the start of the text. Anything after it is ignored.
+     *
+     * @param text
+     * @return The time in ms.
+     * @throws ParseException
+     */
+    public long parse(CharSequence text) throws ParseException {
+        return parse(text, 0);
+    }
+
+    /**
+     * Parses a time starting at off. Anything after it is ignored.
+     *
+     * @param text
+     * @param off
+     * @return The time in ms.
+     * @throws ParseException
+     */
+    public long parse(CharSequence text, int off) throws ParseException {
+        int len = text.length();
+        if(len - off < LENGTH || !isFixedWidth(text, off)
+            || (len - off > LENGTH && isDigit(text.charAt(off + LENGTH)))) {
+            // More digits after the ms would be part of the ms
+            return parseWithFormat(text, off);
+        }
+        int year = digits(text, off, 4);
+        int month = digits(text, off + 5, 2);
+        int day = digits(text, off + 8, 2);
+        int hour = digits(text, off + 11, 2);
+        int min = digits(text, off + 14, 2);
+        int sec = digits(text, off + 17, 2);
+        int ms = digits(text, off + 20, 3);
+        if(month < 1 || month > 12 || day < 1 || day > 31 || hour > 23
+            || min > 59 || sec > 59) {
+            // Let the lenient Calendar roll them over
+            return calendarTime(year, month, day, hour, min, sec, ms);
+        }
+
+        int dayKey = (year * 100 + month) * 100 + day;
+        if(dayKey != cachedDay) {
+            setDay(year, month, day);
+        }
+        if(cachedDayLinear) {
+            return cachedDayStart
+                + ((hour * 60L + min) * 60L + sec) * 1000L + ms;
+        }
+        // The offset changes near this day
+        return calendarTime(year, month, day, hour, min, sec, ms);
+    }
+
+    /**
+     * Sets the cached day.
+     */
+    private void setDay(int year, int month, int day) {
+        long start = calendarTime(year, month, day, 0, 0, 0, 0);
+        // Only treat the day as linear if the offset is the same from a day
+        // before to a day after it, so no time of day is skipped or repeated
+        int offset = tz.getOffset(start);
+        boolean linear = true;
+        long end = start + 2 * MS_PER_DAY;
+        for(long t = start - MS_PER_DAY; t <= end; t += MS_PER_HOUR) {
+            if(tz.getOffset(t) != offset) {
+                linear = false;
+                break;
+            }
+        }
+        cachedDayLinear = linear;
+        cachedDayStart = start;
+        cachedDay = (year * 100 + month) * 100 + day;
+    }
+
+    /**
+     * Returns the time from the Calendar, set the same way SimpleDateFormat
+     * sets it.
+     */
+    private long calendarTime(int year, int month, int day, int hour,
+        int min, int sec, int ms) {
+        cal.clear();
+        cal.set(Calendar.YEAR, year);
+        cal.set(Calendar.MONTH, month - 1);
+        cal.set(Calendar.DAY_OF_MONTH, day);
+        cal.set(Calendar.HOUR_OF_DAY, hour);
+        cal.set(Calendar.MINUTE, min);
+        cal.set(Calendar.SECOND, sec);
+        cal.set(Calendar.MILLISECOND, ms);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Parses with the SimpleDateFormat, throwing a ParseException when
+     * SimpleDateFormat.parse(String) would.
+     */
+    private long parseWithFormat(CharSequence text, int off)
+        throws ParseException {
+        String string = text.subSequence(off, text.length()).toString();
+        ParsePosition pos = new ParsePosition(0);
+        Date date = format.parse(string, pos);
+        if(pos.getIndex() == 0) {
+            throw new ParseException("Unparseable HxM time: \"" + string
+                + "\"", off + pos.getErrorIndex());
+        }
+        return date.getTime();
+    }
+
+    /**
+     * Returns whether the LENGTH characters at off have digits and separators
+     * in the places of yyyy-MM-dd HH:mm:ss.SSS.
+     */
+    private static boolean isFixedWidth(CharSequence text, int off) {
+        for(int i = 0; i < LENGTH; i++) {
+            char c = text.charAt(off + i);
+            switch(i) {
+            case 4:
+            case 7:
+                if(c != '-') return false;
+                break;
+            case 10:
+                if(c != ' ') return false;
+                break;
+            case 13:
+            case 16:
+                if(c != ':') return false;
+                break;
+            case 19:
+                if(c != '.') return false;
+                break;
+            default:
+                if(!isDigit(c)) return false;
+                break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(CharSequence text, int off, int n) {
+        int val = 0;
+        for(int i = off; i < off + n; i++) {
+            val = val * 10 + (text.charAt(i) - '0');
+        }
+        return val;
+    }
+
+}
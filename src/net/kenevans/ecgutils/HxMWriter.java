@@ -0,0 +1,161 @@
+package net.kenevans.ecgutils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HxMWriter writes the data lines of an HxM file. Each line is of the form
+ * yyyy-MM-dd HH:mm:ss.SSS,hr,rr,-1,-1 followed by the line separator. The
+ * bytes are identical to what ECGUtils.writeHxMFile formerly wrote with
+ * PrintWriter.printf.
+ *
+ * The time and numbers are written directly into a reusable byte buffer, which
+ * is written to a FileChannel when it is full, so writing a line does not
+ * allocate.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class HxMWriter implements Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Room needed for the longest line. */
+    private static final int MAX_LINE_LENGTH = 128;
+    private static final byte[] LS_BYTES = Utils.LS
+        .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRAILER = ",-1,-1"
+        .getBytes(StandardCharsets.US_ASCII);
+
+    private final FileOutputStream fos;
+    private final FileChannel channel;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
+    private final HxMTimeFormatter timeFormatter;
+    private int pos;
+
+    /**
+     * HxMWriter constructor. Creates or truncates the file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public HxMWriter(File file) throws IOException {
+        this(file, new HxMTimeFormatter());
+    }
+
+    /**
+     * HxMWriter constructor. Creates or truncates the file.
+     *
+     * @param file
+     * @param timeFormatter The HxMTimeFormatter to use.
+     * @throws IOException
+     */
+    public HxMWriter(File file, HxMTimeFormatter timeFormatter)
+        throws IOException {
+        this.timeFormatter = timeFormatter;
+        fos = new FileOutputStream(file);
+        channel = fos.getChannel();
+    }
+
+    /**
+     * Writes a data line.
+     *
+     * @param time The time in ms.
+     * @param hr The heart rate.
+     * @param rr The RR interval.
+     * @throws IOException
+     */
+    public void writeLine(long time, long hr, long rr) throws IOException {
+        if(pos > BUFFER_SIZE - MAX_LINE_LENGTH) {
+            flushBuffer();
+        }
+        pos = timeFormatter.format(time, buf, pos);
+        buf[pos++] = ',';
+        pos = writeLong(buf, pos, hr);
+        buf[pos++] = ',';
+        pos = writeLong(buf, pos, rr);
+        System.arraycopy(TRAILER, 0, buf, pos, TRAILER.length);
+        pos += TRAILER.length;
+        System.arraycopy(LS_BYTES, 0, buf, pos, LS_BYTES.length);
+        pos += LS_BYTES.length;
+    }
+
+    /**
+     * Writes a blank line.
+     *
+     * @throws IOException
+     */
+    public void writeBlankLine() throws IOException {
+        if(pos > BUFFER_SIZE - MAX_LINE_LENGTH) {
+            flushBuffer();
+        }
+        System.arraycopy(LS_BYTES, 0, buf, pos, LS_BYTES.length);
+        pos += LS_BYTES.length;
+    }
+
+    /**
+     * Writes any buffered bytes to the file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        byteBuffer.clear();
+        byteBuffer.limit(pos);
+        while(byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        pos = 0;
+    }
+
+    /**
+     * Writes the decimal digits of val into buf starting at off.
+     *
+     * @param buf
+     * @param off
+     * @param val
+     * @return The offset after the last byte written.
+     */
+    static int writeLong(byte[] buf, int off, long val) {
+        if(val == Long.MIN_VALUE) {
+            String string = Long.toString(val);
+            for(int i = 0; i < string.length(); i++) {
+                buf[off++] = (byte)string.charAt(i);
+            }
+            return off;
+        }
+        if(val < 0) {
+            buf[off++] = '-';
+            val = -val;
+        }
+        int start = off;
+        do {
+            buf[off++] = (byte)('0' + (int)(val % 10));
+            val /= 10;
+        } while(val != 0);
+        // Reverse the digits
+        for(int i = start, j = off - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return off;
+    }
+
+}
@@ -0,0 +1,325 @@
+package net.kenevans.ecgutils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * LombScargle calculates the Lomb-Scargle periodogram of unevenly sampled data
+ * using the fast method of Press and Rybicki (Numerical Recipes fasper). The
+ * data are extirpolated onto a regular grid, and the sums for all frequencies
+ * are found with one FFT, so the cost is O(n log n) rather than O(n * nFreq).
+ * The two real FFTs needed are done as one complex FFT.
+ *
+ * The result is a power spectral density in units of the data squared per unit
+ * of frequency, scaled so that the power of a sinusoid integrated over its
+ * peak is its variance. For RR values in ms and times in sec, it is in
+ * ms^2/Hz, and bandPower gives the LF and HF power in ms^2.
+ *
+ * The frequency spacing depends on the length of each series, but the work
+ * buffers and the frequency and PSD arrays are kept and only grown, so an
+ * instance can be reused for many series without allocating. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class LombScargle
+{
+    /** Number of grid points each data point is extirpolated to. */
+    private static final int MACC = 4;
+    /** FACTORIALS[k] is k!. */
+    private static final double[] FACTORIALS = {1, 1, 2, 6, 24, 120, 720,
+        5040, 40320, 362880, 3628800};
+    /** Default oversampling factor. */
+    public static final double DEFAULT_OFAC = 4;
+
+    private final double ofac;
+    // Input buffers for computeRr
+    private double[] times = new double[0];
+    private double[] vals = new double[0];
+    // FFT work buffers
+    private double[] re = new double[0];
+    private double[] im = new double[0];
+    // Results
+    private double[] freqs = new double[0];
+    private double[] psd = new double[0];
+    private int nFreqs;
+    private double df;
+
+    /**
+     * LombScargle constructor with the default oversampling.
+     */
+    public LombScargle() {
+        this(DEFAULT_OFAC);
+    }
+
+    /**
+     * LombScargle constructor.
+     *
+     * @param ofac The oversampling factor. The frequency spacing is 1 / (ofac
+     *            * T), where T is the time span of the data.
+     */
+    public LombScargle(double ofac) {
+        this.ofac = ofac;
+    }
+
+    /**
+     * Calculates the PSD of the unmarked RR values in a series. The time of
+     * each value is the sum of all the RR values up to and including it, marked
+     * or not.
+     *
+     * @param rrVals The RR values.
+     * @param n The number of values to use.
+     * @param marks Bit i is set if value i should be skipped. May be null.
+     * @param secPerRr The factor to convert an RR value to sec.
+     * @param fMax The highest frequency needed in Hz.
+     * @return The number of frequencies, which is 0 if there are too few
+     *         values.
+     */
+    public int computeRr(double[] rrVals, int n, BitSet marks,
+        double secPerRr, double fMax) {
+        if(times.length < n) {
+            times = new double[n];
+            vals = new double[n];
+        }
+        int nUsed = 0;
+        double time = 0;
+        for(int i = 0; i < n; i++) {
+            time += rrVals[i] * secPerRr;
+            if(marks != null && marks.get(i)) continue;
+            times[nUsed] = time;
+            vals[nUsed] = rrVals[i];
+            nUsed++;
+        }
+        return compute(times, vals, nUsed, fMax);
+    }
+
+    /**
+     * Calculates the PSD of the data at frequencies k * df for k = 1 to
+     * getNFrequencies(), up to at least fMax.
+     *
+     * @param x The times, in increasing order.
+     * @param y The values.
+     * @param n The number of values to use.
+     * @param fMax The highest frequency needed.
+     * @return The number of frequencies, which is 0 if there are too few
+     *         values.
+     */
+    public int compute(double[] x, double[] y, int n, double fMax) {
+        nFreqs = 0;
+        df = 0;
+        if(n < 2) return 0;
+        double xMin = x[0];
+        double xDif = x[n - 1] - xMin;
+        if(!(xDif > 0)) return 0;
+        double ave = 0;
+        for(int i = 0; i < n; i++) {
+            ave += y[i];
+        }
+        ave /= n;
+
+        df = 1 / (xDif * ofac);
+        int nOut = (int)Math.ceil(fMax / df);
+        // The grid has to reach twice the highest frequency, with MACC points
+        // per frequency
+        long nFreqT = (long)(2 * nOut * MACC);
+        int nFreq = 64;
+        while(nFreq < nFreqT) {
+            nFreq <<= 1;
+        }
+        int nDim = nFreq << 1;
+        if(re.length < nDim) {
+            re = new double[nDim];
+            im = new double[nDim];
+        } else {
+            Arrays.fill(re, 0, nDim, 0);
+            Arrays.fill(im, 0, nDim, 0);
+        }
+        if(freqs.length < nOut) {
+            freqs = new double[nOut];
+            psd = new double[nOut];
+        }
+
+        // Extirpolate the data into re and the weights at twice the
+        // frequency into im
+        double fac = nDim / (xDif * ofac);
+        double ck, ckk;
+        for(int i = 0; i < n; i++) {
+            ck = ((x[i] - xMin) * fac) % nDim;
+            ckk = (2 * ck) % nDim;
+            spread(y[i] - ave, re, nDim, ck);
+            spread(1.0, im, nDim, ckk);
+        }
+        fft(re, im, nDim);
+
+        double hypo, hc2wt, hs2wt, cwt, swt, den, cTerm, sTerm;
+        double r1, i1, r2, i2;
+        int j2;
+        for(int j = 1; j <= nOut; j++) {
+            // Separate the transforms of the two real arrays
+            j2 = nDim - j;
+            r1 = .5 * (re[j] + re[j2]);
+            i1 = .5 * (im[j] - im[j2]);
+            r2 = .5 * (im[j] + im[j2]);
+            i2 = -.5 * (re[j] - re[j2]);
+            hypo = Math.sqrt(r2 * r2 + i2 * i2);
+            if(hypo == 0) {
+                hc2wt = .5;
+                hs2wt = 0;
+            } else {
+                hc2wt = .5 * r2 / hypo;
+                hs2wt = .5 * i2 / hypo;
+            }
+            cwt = Math.sqrt(.5 + hc2wt);
+            swt = Math.copySign(Math.sqrt(Math.max(.5 - hc2wt, 0)), hs2wt);
+            den = .5 * n + hc2wt * r2 + hs2wt * i2;
+            cTerm = cwt * r1 + swt * i1;
+            sTerm = cwt * i1 - swt * r1;
+            cTerm = (den > 0) ? cTerm * cTerm / den : 0;
+            sTerm = (n - den > 0) ? sTerm * sTerm / (n - den) : 0;
+            freqs[j - 1] = j * df;
+            // Unnormalized periodogram is (cTerm + sTerm) / 2
+            psd[j - 1] = (cTerm + sTerm) * xDif / n;
+        }
+        nFreqs = nOut;
+        return nFreqs;
+    }
+
+    /**
+     * Returns the power in the band fLo <= f < fHi from the last compute.
+     *
+     * @param fLo
+     * @param fHi
+     * @return The power or NaN if there are no frequencies.
+     */
+    public double bandPower(double fLo, double fHi) {
+        if(nFreqs == 0) return Double.NaN;
+        double sum = 0;
+        for(int j = 0; j < nFreqs; j++) {
+            if(freqs[j] >= fLo && freqs[j] < fHi) {
+                sum += psd[j];
+            }
+        }
+        return sum * df;
+    }
+
+    /**
+     * Adds val into the array yy of length n at the fractional index x by
+     * Lagrange extirpolation to the MACC nearest points.
+     *
+     * @param val
+     * @param yy
+     * @param n
+     * @param x The 0-based index.
+     */
+    private static void spread(double val, double[] yy, int n, double x) {
+        int ix = (int)x;
+        if(x == ix) {
+            yy[ix] += val;
+            return;
+        }
+        // Same as Numerical Recipes with 1-based x1 = x + 1
+        double x1 = x + 1;
+        int ilo = (int)Math.min(Math.max((long)(x1 - .5 * MACC + 1), 1),
+            n - MACC + 1);
+        int ihi = ilo + MACC - 1;
+        // The Lagrange denominator starts at (MACC - 1)!
+        double nden = FACTORIALS[MACC - 1];
+        double fac = x1 - ilo;
+        for(int j = ilo + 1; j <= ihi; j++) {
+            fac *= x1 - j;
+        }
+        yy[ihi - 1] += val * fac / (nden * (x1 - ihi));
+        for(int j = ihi - 1; j >= ilo; j--) {
+            nden = (nden / (j + 1 - ilo)) * (j - ihi);
+            yy[j - 1] += val * fac / (nden * (x1 - j));
+        }
+    }
+
+    /**
+     * In-place radix-2 complex FFT with a positive exponent. The sign does not
+     * matter here since both transforms use the same one.
+     *
+     * @param re
+     * @param im
+     * @param n A power of 2.
+     */
+    private static void fft(double[] re, double[] im, int n) {
+        // Bit reversal
+        double tmp;
+        for(int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for(; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if(i < j) {
+                tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+        double wr, wi, wpr, wpi, theta, tr, ti, ur, ui;
+        for(int len = 2; len <= n; len <<= 1) {
+            theta = 2 * Math.PI / len;
+            wpr = Math.cos(theta);
+            wpi = Math.sin(theta);
+            int half = len >> 1;
+            for(int i = 0; i < n; i += len) {
+                wr = 1;
+                wi = 0;
+                for(int k = 0; k < half; k++) {
+                    int a = i + k;
+                    int b = a + half;
+                    tr = wr * re[b] - wi * im[b];
+                    ti = wr * im[b] + wi * re[b];
+                    ur = re[a];
+                    ui = im[a];
+                    re[a] = ur + tr;
+                    im[a] = ui + ti;
+                    re[b] = ur - tr;
+                    im[b] = ui - ti;
+                    tmp = wr;
+                    wr = tmp * wpr - wi * wpi;
+                    wi = tmp * wpi + wi * wpr;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of frequencies from the last compute.
+     */
+    public int getNFrequencies() {
+        return nFreqs;
+    }
+
+    /**
+     * Returns the frequencies. The array is reused and may be longer than
+     * getNFrequencies().
+     *
+     * @return
+     */
+    public double[] getFrequencies() {
+        return freqs;
+    }
+
+    /**
+     * Returns the PSD at each frequency. The array is reused and may be longer
+     * than getNFrequencies().
+     *
+     * @return
+     */
+    public double[] getPsd() {
+        return psd;
+    }
+
+    /**
+     * @return The frequency spacing from the last compute.
+     */
+    public double getDf() {
+        return df;
+    }
+
+}
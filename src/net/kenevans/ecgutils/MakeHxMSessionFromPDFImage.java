@@ -1,5 +1,6 @@
 package net.kenevans.ecgutils;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
@@ -12,9 +13,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
@@ -45,6 +57,44 @@ public class MakeHxMSessionFromPDFImage
      */
     private static final String BCM_FILE_DIR = "C:/Scratch/ECG/Android/SCH-I545/Current/BLE Cardiac Monitor/";
     public static final String SAVE_SESSION_DELIM = ",";
+    /**
+     * Whether to trim using a binary search for the start and end times rather
+     * than parsing every line. It is faster for large files, but it only keeps
+     * the blank and # lines in the header and the time window, and it reports
+     * the bytes written rather than the lines.
+     * 
+     * @see HxMFileTrimmer
+     */
+    private static final boolean TRIM_BY_BINARY_SEARCH = false;
+    // private static final boolean TRIM_BY_BINARY_SEARCH = true;
+    /**
+     * Whether to decode only the rows of the page images that are scanned for
+     * markers rather than the whole page.
+     * 
+     * @see #openImageRegion
+     */
+    private static final boolean DECODE_REGION = true;
+    /**
+     * Whether to keep the markers found on each page in a cache so pages that
+     * have been scanned before are not decoded again.
+     * 
+     * @see PageMarkerCache
+     */
+    private static final boolean USE_PAGE_CACHE = true;
+    /** The name of the page cache directory, in the image directory. */
+    private static final String PAGE_CACHE_DIR_NAME = "MarkerCache";
+    /** Whether to decode and scan the pages in parallel. */
+    private static final boolean PARALLEL = true;
+    /** The number of worker threads for PARALLEL. */
+    private static final int N_THREADS = Runtime.getRuntime()
+        .availableProcessors();
+    /** Marker scanner, with row buffers per thread. */
+    private static final ThreadLocal<RMarkerScanner> rMarkerScanner = new ThreadLocal<RMarkerScanner>() {
+        @Override
+        protected RMarkerScanner initialValue() {
+            return new RMarkerScanner();
+        }
+    };
     private static int rrYVals[] = {1064, 1773, 2481, 3190};
     private static int YOFFSET = 20;
 
@@ -61,6 +111,18 @@ public class MakeHxMSessionFromPDFImage
     private File[] imageFiles;
     private long startTime;
     private long endTime;
+    /** The directory for the output and trimmed files. */
+    private File outputDir = new File(HXM_FILE_DIR);
+    /**
+     * Whether this instance is run by runBatch. Then there are no dialogs,
+     * existing files are overwritten, and the pages are processed in sequence
+     * since the sessions are processed in parallel.
+     */
+    private boolean batch;
+    /** The first error message in batch mode. */
+    private String errorMessage;
+    /** The page cache for USE_PAGE_CACHE or null. */
+    private PageMarkerCache pageCache;
 
     /**
      * Runs the steps to read the image, write the AliceCor file, and create a
@@ -119,13 +181,17 @@ public class MakeHxMSessionFromPDFImage
         String name = file.getName();
         int pos = name.indexOf(".");
         if(pos == -1) {
-            Utils.errMsg("Bad file name:" + LS + name);
+            errMsg("Bad file name:" + LS + name);
             return false;
         }
         // File names are assumed to be of the form:
         // [prefix]ecg-yyyymmdd-hhmmss.nn.suffix.
         // The imageNamePrefix is [prefix]ecg-yyyymmdd-hhmmss
         imageNamePrefix = name.substring(0, pos);
+        if(USE_PAGE_CACHE) {
+            pageCache = new PageMarkerCache(new File(file.getParentFile(),
+                PAGE_CACHE_DIR_NAME), pageCacheParams());
+        }
         // If the name starts with the ALIVECOR_SHARE_PREFIX, remove it for
         // further processing
         if(name.startsWith(ALIVECOR_SHARE_PREFIX)) {
@@ -147,8 +213,8 @@ public class MakeHxMSessionFromPDFImage
         // Output file
         String hxmName = String.format(HXM_CSV_TEMPLATE, year, month, day,
             hour, min, sec);
-        hxmFile = new File(HXM_FILE_DIR, hxmName);
-        if(hxmFile.exists()) {
+        hxmFile = new File(outputDir, hxmName);
+        if(hxmFile.exists() && !batch) {
             int result = JOptionPane.showConfirmDialog(null, "File exists:"
                 + LS + hxmFile.getPath() + LS + "OK to overwrite?",
                 "File Exists", JOptionPane.OK_CANCEL_OPTION);
@@ -172,7 +238,7 @@ public class MakeHxMSessionFromPDFImage
             }
         });
         if(imageFiles == null || imageFiles.length == 0) {
-            Utils.errMsg("No input files found");
+            errMsg("No input files found");
             return false;
         }
         Arrays.sort(imageFiles);
@@ -185,7 +251,9 @@ public class MakeHxMSessionFromPDFImage
     }
 
     /**
-     * Parses the image looking for R markers.
+     * Parses the image looking for R markers. The pages are decoded and
+     * scanned on a pool of threads if PARALLEL is set, but the markers are
+     * added to the rrList and reported in page order.
      * 
      * @return If successful or not.
      */
@@ -195,118 +263,193 @@ public class MakeHxMSessionFromPDFImage
             System.out.println();
         }
         File file = null;
-        int rgb, y;
-        int nMarkerPoints = 0;
-        int markerSum = 0;
+        int y;
         double xMarker;
         int nBadMarkers = 0;
         int nOverlappingMarkers = 0;
-        boolean processingMarker = false;
-        int markerRGB;
-        for(int page = 0; page < imageFiles.length; page++) {
-            file = imageFiles[page];
-            BufferedImage image = openImageFile(file);
-            if(VERBOSE) {
-                System.out.println("Processing " + file.getPath());
-                // printInfo(image);
-            }
-            if(image == null) {
-                Utils.errMsg("File for page " + page + " is null" + LS
-                    + file.getPath());
-                return false;
-            }
-
-            // Loop over the lines with markers
-            if(page == 0) {
-                markerRGB = 0xff000000;
-            } else {
-                markerRGB = 0xff333333;
+        ExecutorService executor = null;
+        ArrayList<Future<PageMarkers>> futures = null;
+        try {
+            if(PARALLEL && !batch && imageFiles.length > 1) {
+                executor = Executors.newFixedThreadPool(Math.min(N_THREADS,
+                    imageFiles.length));
+                futures = new ArrayList<Future<PageMarkers>>(imageFiles.length);
+                for(int page = 0; page < imageFiles.length; page++) {
+                    final int page1 = page;
+                    futures.add(executor.submit(new Callable<PageMarkers>() {
+                        @Override
+                        public PageMarkers call() throws Exception {
+                            return scanPage(imageFiles[page1], page1);
+                        }
+                    }));
+                }
             }
-            for(int line = 0; line < 4; line++) {
-                y = rrYVals[line];
+            for(int page = 0; page < imageFiles.length; page++) {
+                file = imageFiles[page];
+                PageMarkers pageMarkers = (futures != null)
+                    ? futures.get(page).get() : scanPage(file, page);
                 if(VERBOSE) {
-                    System.out.println("Page " + page + " Line " + line + " y="
-                        + y);
+                    System.out.println("Processing " + file.getPath());
                 }
-                processingMarker = false;
-
-                for(int x = 0; x < image.getWidth(); x++) {
-                    rgb = image.getRGB(x, y);
-                    // // DEBUG
-                    // if(x < 350) {
-                    // System.out.printf(" %08x", rgb);
-                    // }
-                    // if(rgb == 0xff000000) {
-                    // System.out.print(" " + x);
-                    // }
-                    if(rgb == markerRGB) {
-                        if(!processingMarker) {
-                            processingMarker = true;
-                            nMarkerPoints = 0;
-                            markerSum = 0;
+                if(pageMarkers.getErrorMessage() != null) {
+                    // Reported here, so only the first bad page is reported
+                    errMsg(pageMarkers.getErrorMessage());
+                    errMsg("File for page " + page + " is null" + LS
+                        + file.getPath());
+                    return false;
+                }
+
+                // Loop over the lines with markers
+                for(int line = 0; line < 4; line++) {
+                    y = rrYVals[line];
+                    if(VERBOSE) {
+                        System.out.println("Page " + page + " Line " + line
+                            + " y=" + y);
+                    }
+                    for(RMarkerScanner.Marker marker : pageMarkers
+                        .getMarkers(line)) {
+                        if(marker.getType() == RMarkerScanner.Type.BAD) {
+                            // Should not happen
+                            nBadMarkers++;
+                            System.out.println("Bad marker " + nBadMarkers
+                                + ": page=" + page + " line=" + line
+                                + " nMarkerPoints=" + marker.getNPoints()
+                                + "x=" + marker.getX());
+                            continue;
                         }
-                        markerSum += x;
-                        nMarkerPoints++;
-                    } else {
-                        if(processingMarker) {
-                            processingMarker = false;
-                            if(nMarkerPoints < 6) {
-                                // Not a marker
-                                continue;
-                            } else if(nMarkerPoints > 9) {
-                                // Should not happen
-                                nBadMarkers++;
-                                System.out.println("Bad marker " + nBadMarkers
-                                    + ": page=" + page + " line=" + line
-                                    + " nMarkerPoints=" + nMarkerPoints + "x="
-                                    + x);
-                                continue;
-                            } else if(nMarkerPoints == 6) {
-                                // Isolated marker
-                                xMarker = (double)markerSum
-                                    / (double)nMarkerPoints;
-                            } else {
-                                // Is overlapping a grid line
-                                nOverlappingMarkers++;
-                                // Check if the space above is a marker color
-                                rgb = image.getRGB(x - 1, y - YOFFSET);
-                                if(rgb == markerRGB) {
-                                    // Not a grid line, must be the right edge
-                                    xMarker = (6. * x - 1.) / 6.;
-                                } else {
-                                    // Is a gridLine, marker starts at left edge
-                                    xMarker = (6. * (x - nMarkerPoints) + 15.) / 6.;
-                                }
-                                System.out.println("Overlapping marker "
-                                    + nOverlappingMarkers + ": page=" + page
-                                    + " line=" + line + " nMarerPoints="
-                                    + nMarkerPoints + "x=" + x + " XMarker="
-                                    + xMarker);
-                            }
-                            // Add the time in ms to the list
-                            rrList.add(new MarkedDouble(calibration.time(
-                                xMarker, line, page)));
-                            if(VERBOSE) {
-                                System.out.println(" "
-                                    + xMarker
-                                    + "\tt="
-                                    + String.format("%.2f",
-                                        calibration.time(xMarker, line, page)));
-                            }
+                        xMarker = marker.getXMarker();
+                        if(marker.getType() == RMarkerScanner.Type.OVERLAPPING) {
+                            nOverlappingMarkers++;
+                            System.out.println("Overlapping marker "
+                                + nOverlappingMarkers + ": page=" + page
+                                + " line=" + line + " nMarerPoints="
+                                + marker.getNPoints() + "x=" + marker.getX()
+                                + " XMarker=" + xMarker);
+                        }
+                        // Add the time in ms to the list
+                        rrList.add(new MarkedDouble(calibration.time(xMarker,
+                            line, page)));
+                        if(VERBOSE) {
+                            System.out.println(" "
+                                + xMarker
+                                + "\tt="
+                                + String.format("%.2f",
+                                    calibration.time(xMarker, line, page)));
                         }
                     }
                 }
+                // End of parsing
+                if(nBadMarkers > 0) {
+                    errMsg("Found " + nBadMarkers
+                        + " RR markers with width != 6 for" + LS
+                        + file.getPath());
+                    return false;
+                }
             }
-            // End of parsing
-            if(nBadMarkers > 0) {
-                Utils.errMsg("Found " + nBadMarkers
-                    + " RR markers with width != 6 for" + LS + file.getPath());
-                return false;
+        } catch(ExecutionException ex) {
+            excMsg("Error parsing " + file.getPath(), ex.getCause());
+            return false;
+        } catch(InterruptedException ex) {
+            excMsg("Interrupted parsing " + file.getPath(), ex);
+            return false;
+        } finally {
+            if(futures != null) {
+                // Stop the pages still being scanned after an error
+                for(Future<PageMarkers> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            if(executor != null) {
+                executor.shutdownNow();
             }
         }
         return true;
     }
 
+    /**
+     * Reads one page and finds the markers on each line, or gets them from the
+     * page cache if the page has been scanned before with the same
+     * parameters. Uses only the parameters, the cache, and a scanner for each
+     * thread, and does not report errors itself, so it may be called
+     * concurrently for different pages.
+     * 
+     * @param file The image file for the page.
+     * @param page The page number.
+     * @return The PageMarkers. If the image could not be read, it has no lines
+     *         and getErrorMessage() gives the reason.
+     */
+    public PageMarkers scanPage(File file, int page) {
+        int markerRGB;
+        if(page == 0) {
+            markerRGB = 0xff000000;
+        } else {
+            markerRGB = 0xff333333;
+        }
+        String cacheKey = null;
+        if(pageCache != null && file.exists()) {
+            try {
+                cacheKey = pageCache.key(file, markerRGB);
+                PageMarkers pageMarkers = pageCache.get(cacheKey);
+                if(pageMarkers != null) {
+                    return pageMarkers;
+                }
+            } catch(IOException ex) {
+                // Scan it instead
+                System.err.println("Error reading page cache for "
+                    + file.getPath() + ": " + ex.getMessage());
+                cacheKey = null;
+            }
+        }
+
+        // The rows needed are from the first row checked above a marker to
+        // the last marker row
+        int minY = Integer.MAX_VALUE;
+        int maxY = 0;
+        for(int yVal : rrYVals) {
+            minY = Math.min(minY, yVal - YOFFSET);
+            maxY = Math.max(maxY, yVal);
+        }
+        // The image row for y is y - y0
+        int y0 = DECODE_REGION ? minY : 0;
+        BufferedImage image;
+        try {
+            image = DECODE_REGION ? readImageRegion(file, minY, maxY)
+                : readImageFile(file);
+        } catch(IOException ex) {
+            PageMarkers failed = new PageMarkers(0);
+            failed.errorMessage = ex.getMessage();
+            return failed;
+        }
+        RMarkerScanner scanner = rMarkerScanner.get();
+        PageMarkers pageMarkers = new PageMarkers(rrYVals.length);
+        int y;
+        for(int line = 0; line < rrYVals.length; line++) {
+            y = rrYVals[line];
+            scanner.scanRow(image, y - y0, y - YOFFSET - y0, markerRGB,
+                pageMarkers.getMarkers(line));
+        }
+        if(cacheKey != null) {
+            try {
+                pageCache.put(cacheKey, pageMarkers);
+            } catch(IOException ex) {
+                System.err.println("Error writing page cache for "
+                    + file.getPath() + ": " + ex.getMessage());
+            }
+        }
+        return pageMarkers;
+    }
+
+    /**
+     * Returns a string with the values of the parameters that affect the
+     * markers found on a page or their times, for the page cache.
+     * 
+     * @return
+     */
+    private static String pageCacheParams() {
+        return "rrYVals=" + Arrays.toString(rrYVals) + ",YOFFSET=" + YOFFSET
+            + ",X0=" + X0 + ",X1=" + X1 + ",T0=" + T0;
+    }
+
     /**
      * Reads the image file and creates a BufferedImage.
      * 
@@ -314,21 +457,121 @@ public class MakeHxMSessionFromPDFImage
      * @return If successful or not.
      */
     public BufferedImage openImageFile(File file) {
-        if(!file.exists()) {
-            Utils.errMsg("File does not exist" + LS + file.getPath());
+        try {
+            return readImageFile(file);
+        } catch(IOException ex) {
+            errMsg(ex.getMessage());
             return null;
         }
+    }
+
+    /**
+     * Reads the image file and creates a BufferedImage without reporting
+     * errors.
+     * 
+     * @param file
+     * @return The image.
+     * @throws IOException With the message to report if it cannot be read.
+     */
+    private BufferedImage readImageFile(File file) throws IOException {
+        if(!file.exists()) {
+            throw new IOException("File does not exist" + LS + file.getPath());
+        }
         BufferedImage image = null;
+        String msg = null;
         try {
             image = ImageIO.read(file);
             if(image == null) {
-                String msg = "Cannot read file:" + LS + file.getName() + LS;
-                Utils.errMsg(msg);
+                msg = "Cannot read file:" + LS + file.getName() + LS;
+            }
+        } catch(Exception ex) {
+            msg = "Error processing file:" + LS
+                + ((file != null) ? file.getName() : "null") + LS + ex + LS
+                + ex.getMessage();
+        }
+        if(msg != null) {
+            throw new IOException(msg);
+        }
+        return image;
+    }
+
+    /**
+     * Reads only the rows from minY to maxY of the image file. The rest of the
+     * page is not stored, and the rows after maxY are not decoded. Formats
+     * such as PNG and JPEG have to be decoded from the top, so one region
+     * covering all the rows is read rather than a band for each line, which
+     * would decode the top of the page again for each band.
+     * 
+     * @param file
+     * @param minY The first row.
+     * @param maxY The last row.
+     * @return The image with row 0 at minY or null on failure.
+     */
+    public BufferedImage openImageRegion(File file, int minY, int maxY) {
+        try {
+            return readImageRegion(file, minY, maxY);
+        } catch(IOException ex) {
+            errMsg(ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the rows from minY to maxY of the image file, as for
+     * openImageRegion, without reporting errors.
+     * 
+     * @param file
+     * @param minY The first row.
+     * @param maxY The last row.
+     * @return The image with row 0 at minY.
+     * @throws IOException With the message to report if it cannot be read.
+     */
+    private BufferedImage readImageRegion(File file, int minY, int maxY)
+        throws IOException {
+        if(!file.exists()) {
+            throw new IOException("File does not exist" + LS + file.getPath());
+        }
+        BufferedImage image = null;
+        String msg = null;
+        ImageInputStream in = null;
+        ImageReader reader = null;
+        try {
+            in = ImageIO.createImageInputStream(file);
+            Iterator<ImageReader> readers = (in == null) ? null
+                : ImageIO.getImageReaders(in);
+            if(readers == null || !readers.hasNext()) {
+                msg = "Cannot read file:" + LS + file.getName() + LS;
+            } else {
+                reader = readers.next();
+                reader.setInput(in, true, true);
+                if(maxY >= reader.getHeight(0)) {
+                    msg = "Image has fewer than " + (maxY + 1) + " rows:" + LS
+                        + file.getName();
+                } else {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, minY, reader
+                        .getWidth(0), maxY - minY + 1));
+                    image = reader.read(0, param);
+                }
             }
         } catch(Exception ex) {
-            Utils.errMsg("Error processing file:" + LS
+            msg = "Error processing file:" + LS
                 + ((file != null) ? file.getName() : "null") + LS + ex + LS
-                + ex.getMessage());
+                + ex.getMessage();
+        } finally {
+            if(reader != null) {
+                reader.dispose();
+            }
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException ex) {
+                    // Do nothing
+                }
+            }
+        }
+        if(msg != null) {
+            throw new IOException(msg);
         }
         return image;
     }
@@ -339,9 +582,14 @@ public class MakeHxMSessionFromPDFImage
      * @return
      */
     public boolean writeHxMFile() {
+        // In batch mode the error is reported here rather than in a dialog
         ECGUtils.CreateHxMFileReturn res = ECGUtils.writeHxMFile(hxmFile,
-            startTime, rrList, MOVING_AVG_LENGTH);
+            startTime, MarkedSeries.fromList(rrList), MOVING_AVG_LENGTH, null,
+            !batch);
         endTime = res.getEndTime();
+        if(batch && res.getError() != null) {
+            excMsg(res.getErrorMessage(), res.getError());
+        }
         return res.getRetVal();
     }
 
@@ -444,19 +692,31 @@ public class MakeHxMSessionFromPDFImage
         int result = chooser.showOpenDialog(null);
         if(result != JFileChooser.APPROVE_OPTION) return false;
 
-        hxmTrimInputFile = chooser.getSelectedFile();
-        if(hxmTrimInputFile == null) {
+        File file = chooser.getSelectedFile();
+        if(file == null) {
             return false;
         }
+        setHxMTrimInputFile(file);
+        return true;
+    }
+
+    /**
+     * Sets the session file to trim and the trimmed file, which is named from
+     * the first 3 characters of its name.
+     * 
+     * @param file
+     */
+    public void setHxMTrimInputFile(File file) {
+        hxmTrimInputFile = file;
         String hxmTrimName = trimNamePrefix
             + String.format(HXM_TRIM_SUFFIX_TEMPLATE, hxmTrimInputFile
                 .getName().substring(0, 3));
-        hxmTrimFile = new File(HXM_FILE_DIR, hxmTrimName);
-        return true;
+        hxmTrimFile = new File(outputDir, hxmTrimName);
     }
 
     /**
-     * Parses the untrimmed file and writes the trimmed file.
+     * Parses the untrimmed file and writes the trimmed file. Uses only the
+     * state of this instance, so different instances may run concurrently.
      * 
      * @return If successful.
      */
@@ -464,7 +724,7 @@ public class MakeHxMSessionFromPDFImage
         boolean retVal = true;
         if(hxmTrimInputFile == null) return false;
         if(hxmTrimFile == null) return false;
-        if(hxmTrimFile.exists()) {
+        if(hxmTrimFile.exists() && !batch) {
             int result = JOptionPane.showConfirmDialog(null, "File exists:"
                 + LS + hxmTrimFile.getPath() + LS + "OK to overwrite?",
                 "File Exists", JOptionPane.OK_CANCEL_OPTION);
@@ -472,6 +732,9 @@ public class MakeHxMSessionFromPDFImage
                 return false;
             }
         }
+        if(TRIM_BY_BINARY_SEARCH) {
+            return writeHxMTrimFileBinarySearch();
+        }
 
         BufferedReader in = null;
         PrintWriter out = null;
@@ -480,28 +743,29 @@ public class MakeHxMSessionFromPDFImage
             in = new BufferedReader(new FileReader(hxmTrimInputFile));
             out = new PrintWriter(new FileWriter(hxmTrimFile));
             String line;
+            String trimmedLine;
             int lineNum = 0;
             long dateNum;
-            String[] tokens;
+            HxMTimeParser timeParser = new HxMTimeParser();
             while((line = in.readLine()) != null) {
                 lineNum++;
-                tokens = line.trim().split(SAVE_SESSION_DELIM);
-                if(line.trim().length() == 0) {
+                trimmedLine = line.trim();
+                if(trimmedLine.length() == 0) {
                     nLinesWritten++;
                     out.println(line);
                     continue;
                 }
                 // Skip lines starting with #
-                if(tokens[0].trim().startsWith("#")) {
+                if(trimmedLine.startsWith("#")) {
                     nLinesWritten++;
                     out.println(line);
                     continue;
                 }
                 try {
-                    dateNum = ECGUtils.getHxMDateTimeFormat().parse(tokens[0])
-                        .getTime();
+                    // The time is the fixed-width first field
+                    dateNum = timeParser.parse(trimmedLine, 0);
                 } catch(Exception ex) {
-                    Utils.warnMsg("Failed to parse time at line " + lineNum);
+                    warnMsg("Failed to parse time at line " + lineNum);
                     out.close();
                     return false;
                 }
@@ -517,7 +781,7 @@ public class MakeHxMSessionFromPDFImage
             in = null;
             out = null;
         } catch(Exception ex) {
-            Utils.excMsg("Error writing HxM trim file", ex);
+            excMsg("Error writing HxM trim file", ex);
             retVal = false;
         } finally {
             try {
@@ -538,12 +802,317 @@ public class MakeHxMSessionFromPDFImage
         return retVal;
     }
 
+    /**
+     * Writes the trimmed file using HxMFileTrimmer, which finds the start and
+     * end of the time window by binary search.
+     * 
+     * @return If successful.
+     */
+    private boolean writeHxMTrimFileBinarySearch() {
+        long nBytesWritten;
+        try {
+            nBytesWritten = HxMFileTrimmer.trim(hxmTrimInputFile, hxmTrimFile,
+                startTime, endTime);
+        } catch(Exception ex) {
+            excMsg("Error writing HxM trim file", ex);
+            System.out.println();
+            System.out.println("Error writing " + hxmTrimFile.getPath());
+            return false;
+        }
+        System.out.println();
+        System.out.println("Wrote " + nBytesWritten + " bytes to "
+            + hxmTrimFile.getPath());
+        return true;
+    }
+
+    /**
+     * Shows an error message, or in batch mode prints it and keeps the first
+     * one for the report.
+     * 
+     * @param msg
+     */
+    private synchronized void errMsg(String msg) {
+        if(batch) {
+            if(errorMessage == null) {
+                errorMessage = msg;
+            }
+            System.err.println(msg);
+        } else {
+            Utils.errMsg(msg);
+        }
+    }
+
+    /**
+     * Shows a warning message, or in batch mode prints it.
+     * 
+     * @param msg
+     */
+    private void warnMsg(String msg) {
+        if(batch) {
+            System.err.println(msg);
+        } else {
+            Utils.warnMsg(msg);
+        }
+    }
+
+    /**
+     * Shows an exception message, or in batch mode prints it and keeps it for
+     * the report as for errMsg.
+     * 
+     * @param msg
+     * @param ex
+     */
+    private void excMsg(String msg, Exception ex) {
+        if(batch) {
+            errMsg(msg + LS + "Exception: " + ex + LS + ex.getMessage());
+        } else {
+            Utils.excMsg(msg, ex);
+        }
+    }
+
+    /**
+     * Shows a throwable message, or in batch mode prints it and keeps it for
+     * the report as for errMsg.
+     * 
+     * @param msg
+     * @param t
+     */
+    private void excMsg(String msg, Throwable t) {
+        if(batch) {
+            errMsg(msg + LS + "Throwable: " + t + LS + t.getMessage());
+        } else {
+            Utils.excMsg(msg, t);
+        }
+    }
+
+    /**
+     * Converts all the AliveCor sessions in a directory without any dialogs.
+     * The sessions are found from the names of the page images, which start
+     * with ALIVECOR_SHARE_PREFIX. Each session is trimmed from the file in
+     * trimDir whose time range overlaps it the most. The sessions are
+     * processed in parallel, and a report is printed at the end.
+     * 
+     * @param imageDir The directory with the page images.
+     * @param trimDir The directory with the session files to trim.
+     * @param outputDir The directory for the output and trimmed files.
+     * @return The number of sessions that failed or -1 if the images could
+     *         not be listed.
+     */
+    public static int runBatch(File imageDir, final File trimDir,
+        final File outputDir) {
+        File[] files = imageDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(ALIVECOR_SHARE_PREFIX)
+                    && name.indexOf(".") > 0;
+            }
+        });
+        if(files == null) {
+            System.err.println("Cannot list " + imageDir.getPath());
+            return -1;
+        }
+        // The first page for each image name prefix
+        TreeMap<String, File> sessions = new TreeMap<String, File>();
+        for(File file : files) {
+            String name = file.getName();
+            String prefix = name.substring(0, name.indexOf("."));
+            File first = sessions.get(prefix);
+            if(first == null || name.compareTo(first.getName()) < 0) {
+                sessions.put(prefix, file);
+            }
+        }
+        final List<TrimSource> trimSources = findTrimSources(trimDir);
+        System.out.println("Found " + sessions.size() + " sessions in "
+            + imageDir.getPath() + " and " + trimSources.size()
+            + " files to trim in " + trimDir.getPath());
+
+        ArrayList<BatchResult> results = new ArrayList<BatchResult>(
+            sessions.size());
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            ArrayList<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(
+                sessions.size());
+            for(final File file : sessions.values()) {
+                futures.add(executor.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() throws Exception {
+                        return runBatchSession(file, trimSources, outputDir);
+                    }
+                }));
+            }
+            int i = 0;
+            for(String prefix : sessions.keySet()) {
+                BatchResult result;
+                try {
+                    result = futures.get(i++).get();
+                } catch(ExecutionException ex) {
+                    result = new BatchResult(prefix);
+                    result.message = "Exception: " + ex.getCause();
+                }
+                results.add(result);
+            }
+        } catch(InterruptedException ex) {
+            System.err.println("Interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Report
+        int nConverted = 0, nTrimmed = 0, nFailed = 0;
+        System.out.println();
+        System.out.println("Batch report for " + imageDir.getPath());
+        for(BatchResult result : results) {
+            if(!result.converted) {
+                nFailed++;
+                System.out.println("  " + result.prefix + " FAILED: "
+                    + String.valueOf(result.message).replace(LS, " "));
+                continue;
+            }
+            nConverted++;
+            String msg = "  " + result.prefix + " " + result.nMarkers
+                + " markers ";
+            if(result.trimSource != null) {
+                nTrimmed++;
+                msg += "trimmed from " + result.trimSource.getName();
+            } else {
+                msg += String.valueOf(result.message).replace(LS, " ");
+            }
+            System.out.println(msg);
+        }
+        System.out.println("Sessions: " + sessions.size() + " Converted: "
+            + nConverted + " Trimmed: " + nTrimmed + " Failed: " + nFailed);
+        return nFailed;
+    }
+
+    /**
+     * Converts one session for runBatch.
+     * 
+     * @param file The first page of the session.
+     * @param trimSources The files that may be trimmed.
+     * @param outputDir The directory for the output and trimmed files.
+     * @return The BatchResult.
+     */
+    private static BatchResult runBatchSession(File file,
+        List<TrimSource> trimSources, File outputDir) {
+        String name = file.getName();
+        BatchResult result = new BatchResult(name.substring(0,
+            name.indexOf(".")));
+        MakeHxMSessionFromPDFImage app = new MakeHxMSessionFromPDFImage();
+        app.batch = true;
+        app.outputDir = outputDir;
+        try {
+            if(!app.initializeNameBasedItems(file)) {
+                if(app.errorMessage != null) {
+                    result.message = app.errorMessage;
+                }
+                return result;
+            }
+            if(!app.parse()) {
+                if(app.errorMessage != null) {
+                    result.message = app.errorMessage;
+                }
+                return result;
+            }
+            if(!app.writeHxMFile()) {
+                result.message = "Error writing " + app.hxmFile.getPath();
+                if(app.errorMessage != null) {
+                    result.message += ": " + app.errorMessage;
+                }
+                return result;
+            }
+        } catch(Exception ex) {
+            result.message = "Exception: " + ex;
+            return result;
+        }
+        result.converted = true;
+        result.nMarkers = app.rrList.size();
+
+        // Use the file that overlaps the session the most
+        TrimSource best = null;
+        long overlap, bestOverlap = 0;
+        for(TrimSource source : trimSources) {
+            overlap = Math.min(source.endTime, app.endTime)
+                - Math.max(source.startTime, app.startTime);
+            if(overlap > bestOverlap) {
+                best = source;
+                bestOverlap = overlap;
+            }
+        }
+        if(best == null) {
+            result.message = "no file to trim covers the session";
+            return result;
+        }
+        app.setHxMTrimInputFile(best.file);
+        if(!app.writeHxMTrimFile()) {
+            result.message = "trim of " + best.file.getName() + " failed";
+            if(app.errorMessage != null) {
+                result.message += ": " + app.errorMessage;
+            }
+            return result;
+        }
+        result.trimSource = best.file;
+        return result;
+    }
+
+    /**
+     * Finds the time ranges of the .csv files in a directory.
+     * 
+     * @param dir
+     * @return The list of TrimSource's, which is empty if there are none.
+     */
+    private static List<TrimSource> findTrimSources(File dir) {
+        ArrayList<TrimSource> trimSources = new ArrayList<TrimSource>();
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile()
+                    && file.getName().toLowerCase().endsWith(".csv");
+            }
+        });
+        if(files == null) {
+            System.err.println("Cannot list " + dir.getPath());
+            return trimSources;
+        }
+        Arrays.sort(files);
+        for(File file : files) {
+            try {
+                long[] range = HxMFileTrimmer.timeRange(file);
+                if(range != null) {
+                    trimSources.add(new TrimSource(file, range[0], range[1]));
+                }
+            } catch(IOException ex) {
+                System.err.println("Skipping " + file.getPath() + ": "
+                    + ex.getMessage());
+            }
+        }
+        return trimSources;
+    }
+
     /**
      * The main method.
      * 
      * @param args
      */
     public static void main(String[] args) {
+        // Batch mode: -batch [imageDir [trimDir [outputDir]]]
+        if(args.length > 0 && args[0].equals("-batch")) {
+            // The marker output of concurrent sessions would be interleaved
+            VERBOSE = false;
+            File imageDir = new File((args.length > 1) ? args[1]
+                : IMAGE_FILE_DIR);
+            File trimDir = new File((args.length > 2) ? args[2]
+                : BCM_FILE_DIR);
+            File outputDir = new File((args.length > 3) ? args[3]
+                : HXM_FILE_DIR);
+            System.out.println("MakeHxMSessionFromPDFImage Batch");
+            int nFailed = runBatch(imageDir, trimDir, outputDir);
+            System.out.println();
+            System.out.println((nFailed == 0) ? "All Done"
+                : "Done with errors");
+            return;
+        }
+
         // Set the native look and feel
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -600,4 +1169,87 @@ public class MakeHxMSessionFromPDFImage
 
     }
 
+    /**
+     * PageMarkers holds the markers found on each line of one page, in order
+     * of x.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    public static class PageMarkers
+    {
+        private final ArrayList<List<RMarkerScanner.Marker>> lines;
+        private String errorMessage;
+
+        /**
+         * PageMarkers constructor.
+         * 
+         * @param nLines The number of lines on the page.
+         */
+        public PageMarkers(int nLines) {
+            lines = new ArrayList<List<RMarkerScanner.Marker>>(nLines);
+            for(int line = 0; line < nLines; line++) {
+                lines.add(new ArrayList<RMarkerScanner.Marker>());
+            }
+        }
+
+        /**
+         * @return The number of lines.
+         */
+        public int getNLines() {
+            return lines.size();
+        }
+
+        /**
+         * @param line
+         * @return The list of markers for the given line.
+         */
+        public List<RMarkerScanner.Marker> getMarkers(int line) {
+            return lines.get(line);
+        }
+
+        /**
+         * @return Why the page could not be read or null if it was.
+         */
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+    }
+
+    /**
+     * TrimSource is a session file that may be trimmed and its time range.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    private static class TrimSource
+    {
+        private final File file;
+        private final long startTime;
+        private final long endTime;
+
+        TrimSource(File file, long startTime, long endTime) {
+            this.file = file;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    /**
+     * BatchResult is the result for one session in runBatch.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    private static class BatchResult
+    {
+        private final String prefix;
+        private boolean converted;
+        private int nMarkers;
+        private File trimSource;
+        private String message = "Failed";
+
+        BatchResult(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
 }
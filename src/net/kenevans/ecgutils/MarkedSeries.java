@@ -0,0 +1,207 @@
+package net.kenevans.ecgutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Class to hold a series of double values and a flag for each value to
+ * indicate whether it is marked or not. It is a columnar alternative to an
+ * ArrayList&lt;MarkedDouble&gt; that stores the values in a double[] and the
+ * marks in a BitSet.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class MarkedSeries
+{
+    private static final int DEFAULT_CAPACITY = 16;
+    private double[] vals;
+    private final BitSet marks;
+    private int size;
+
+    /**
+     * MarkedSeries constructor for an empty series.
+     */
+    public MarkedSeries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * MarkedSeries constructor for an empty series with the given initial
+     * capacity.
+     *
+     * @param capacity
+     */
+    public MarkedSeries(int capacity) {
+        vals = new double[Math.max(capacity, 1)];
+        marks = new BitSet(vals.length);
+        size = 0;
+    }
+
+    /**
+     * MarkedSeries constructor that uses the given array as the values. The
+     * array is not copied. The values are not marked.
+     *
+     * @param vals
+     */
+    public MarkedSeries(double[] vals) {
+        this.vals = vals;
+        marks = new BitSet(vals.length);
+        size = vals.length;
+    }
+
+    /**
+     * MarkedSeries constructor that uses the given array and BitSet as the
+     * values and marks. Neither is copied, so this can be used to view
+     * existing buffers as a series.
+     *
+     * @param vals
+     * @param marks
+     * @param size The number of values in the series.
+     */
+    public MarkedSeries(double[] vals, BitSet marks, int size) {
+        this.vals = vals;
+        this.marks = marks;
+        this.size = size;
+    }
+
+    /**
+     * Makes a MarkedSeries from the given list.
+     *
+     * @param list
+     * @return
+     */
+    public static MarkedSeries fromList(ArrayList<MarkedDouble> list) {
+        int nVals = list.size();
+        MarkedSeries series = new MarkedSeries(nVals);
+        for(int i = 0; i < nVals; i++) {
+            MarkedDouble md = list.get(i);
+            series.add(md.getVal(), md.getMarked());
+        }
+        return series;
+    }
+
+    /**
+     * Makes an ArrayList&lt;MarkedDouble&gt; from this series.
+     *
+     * @return
+     */
+    public ArrayList<MarkedDouble> toList() {
+        ArrayList<MarkedDouble> list = new ArrayList<MarkedDouble>(size);
+        for(int i = 0; i < size; i++) {
+            list.add(new MarkedDouble(vals[i], marks.get(i)));
+        }
+        return list;
+    }
+
+    /**
+     * Copies the marks of this series to the given list, which must have the
+     * same size.
+     *
+     * @param list
+     */
+    public void copyMarksTo(ArrayList<MarkedDouble> list) {
+        for(int i = 0; i < size; i++) {
+            list.get(i).setMarked(marks.get(i));
+        }
+    }
+
+    /**
+     * Adds an unmarked value.
+     *
+     * @param val
+     */
+    public void add(double val) {
+        add(val, false);
+    }
+
+    /**
+     * Adds a value with the given mark.
+     *
+     * @param val
+     * @param marked
+     */
+    public void add(double val, boolean marked) {
+        if(size == vals.length) {
+            // The array from a constructor may be empty
+            vals = Arrays.copyOf(vals, Math.max(2 * vals.length, 1));
+        }
+        // A view may have a stale mark past its size
+        marks.set(size, marked);
+        vals[size++] = val;
+    }
+
+    /**
+     * Removes all values and marks. The capacity is kept.
+     */
+    public void clear() {
+        marks.clear();
+        size = 0;
+    }
+
+    /**
+     * @return The number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i
+     * @return The value at index i.
+     */
+    public double getVal(int i) {
+        return vals[i];
+    }
+
+    /**
+     * @param i
+     * @param val The new value at index i.
+     */
+    public void setVal(int i, double val) {
+        vals[i] = val;
+    }
+
+    /**
+     * @param i
+     * @return Whether the value at index i is marked.
+     */
+    public boolean getMarked(int i) {
+        return marks.get(i);
+    }
+
+    /**
+     * @param i
+     * @param marked The new value for the mark at index i.
+     */
+    public void setMarked(int i, boolean marked) {
+        marks.set(i, marked);
+    }
+
+    /**
+     * @return The number of marked values.
+     */
+    public int getNMarked() {
+        return marks.cardinality();
+    }
+
+    /**
+     * Returns the backing array of values. It may be longer than size(). Only
+     * the first size() elements are valid.
+     *
+     * @return
+     */
+    public double[] getVals() {
+        return vals;
+    }
+
+    /**
+     * Returns the BitSet of marks. Bit i is set if value i is marked.
+     *
+     * @return
+     */
+    public BitSet getMarks() {
+        return marks;
+    }
+
+}
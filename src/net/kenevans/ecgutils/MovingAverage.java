@@ -1,30 +1,70 @@
 package net.kenevans.ecgutils;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
+/**
+ * MovingAverage calculates a simple moving average over the last period
+ * values. The window is kept in a primitive ring buffer so adding a value does
+ * not allocate.
+ */
 public class MovingAverage
 {
-    private final Queue<Double> window = new LinkedList<Double>();
+    private final double[] window;
     private final int period;
+    private int head;
+    private int count;
     private double sum;
 
     public MovingAverage(int period) {
         assert period > 0 : "Period must be a positive integer";
         this.period = period;
+        this.window = new double[period];
     }
 
     public void newNum(double num) {
         sum += num;
-        window.add(num);
-        if(window.size() > period) {
-            sum -= window.remove();
+        if(count < period) {
+            count++;
+        } else {
+            sum -= window[head];
+        }
+        window[head] = num;
+        if(++head == period) {
+            head = 0;
         }
     }
 
     public double getAvg() {
-        if(window.isEmpty()) return 0; // technically the average is undefined
-        return sum / window.size();
+        if(count == 0) return 0; // technically the average is undefined
+        return sum / count;
+    }
+
+    /**
+     * Clears the window so the instance can be reused.
+     */
+    public void reset() {
+        head = 0;
+        count = 0;
+        sum = 0;
+    }
+
+    /**
+     * Calls newNum for each value in in and stores the resulting average in
+     * the corresponding element of out. The moving average continues from its
+     * current state, so call reset first for a fresh series. The arrays may be
+     * the same.
+     *
+     * @param in The input values.
+     * @param out The smoothed values. Must be at least as long as in.
+     */
+    public void apply(double[] in, double[] out) {
+        int n = in.length;
+        if(out.length < n) {
+            throw new IllegalArgumentException(
+                "Output array is shorter than the input array");
+        }
+        for(int i = 0; i < n; i++) {
+            newNum(in[i]);
+            out[i] = sum / count;
+        }
     }
 
     public static void main(String[] args) {
@@ -38,6 +78,14 @@ public class MovingAverage
                     + ma.getAvg());
             }
             System.out.println();
+            double[] smoothed = new double[testData.length];
+            ma.reset();
+            ma.apply(testData, smoothed);
+            for(int i = 0; i < testData.length; i++) {
+                System.out.println("Next number = " + testData[i]
+                    + ", SMA (apply) = " + smoothed[i]);
+            }
+            System.out.println();
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
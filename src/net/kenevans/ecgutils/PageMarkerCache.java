@@ -0,0 +1,205 @@
+package net.kenevans.ecgutils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import net.kenevans.ecgutils.MakeHxMSessionFromPDFImage.PageMarkers;
+
+/**
+ * PageMarkerCache keeps the markers found on AliveCor page images on disk, so
+ * pages that have already been scanned do not have to be decoded again. The
+ * key is a SHA-256 hash of the image contents together with the marker color
+ * and a string describing the scan and calibration parameters, so a page is
+ * scanned again if either the image or the parameters change.
+ *
+ * Each page is a small text file in the cache directory, named from a hash of
+ * the key. The file has the full key, the number of lines, and one line per
+ * marker of the form m TAB line TAB type TAB x TAB nPoints TAB xMarker,
+ * followed by an end line. The files are written to a temporary file and
+ * renamed, and there is no shared state, so the cache may be used from
+ * several threads and processes.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class PageMarkerCache
+{
+    private static final String HEADER = "# PageMarkerCache 1";
+    private static final String KEY_PREFIX = "key\t";
+    private static final String N_LINES_PREFIX = "nLines\t";
+    private static final String MARKER_PREFIX = "m\t";
+    private static final String END = "end";
+    private static final String SUFFIX = ".markers";
+
+    private final File dir;
+    private final String params;
+
+    /**
+     * PageMarkerCache constructor. The directory is created when the first
+     * page is put.
+     *
+     * @param dir The cache directory.
+     * @param params A string that changes whenever a parameter that affects
+     *            the markers or their times changes. It should not contain
+     *            line breaks.
+     */
+    public PageMarkerCache(File dir, String params) {
+        this.dir = dir;
+        this.params = params;
+    }
+
+    /**
+     * Returns the key for an image scanned with the given marker color.
+     *
+     * @param image The image file.
+     * @param markerRGB The ARGB value of the marker color.
+     * @return The key.
+     * @throws IOException
+     */
+    public String key(File image, int markerRGB) throws IOException {
+        return ProcessingManifest.hash(image) + "\t"
+            + Integer.toHexString(markerRGB) + "\t" + params;
+    }
+
+    /**
+     * Returns the markers saved for a key.
+     *
+     * @param key The key from key().
+     * @return The PageMarkers or null if there are none or the file is not
+     *         valid.
+     * @throws IOException
+     */
+    public PageMarkers get(String key) throws IOException {
+        File file = fileFor(key);
+        if(!file.exists()) {
+            return null;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line = in.readLine();
+            if(line == null || !line.equals(HEADER)) {
+                return null;
+            }
+            line = in.readLine();
+            if(line == null || !line.equals(KEY_PREFIX + key)) {
+                return null;
+            }
+            line = in.readLine();
+            if(line == null || !line.startsWith(N_LINES_PREFIX)) {
+                return null;
+            }
+            PageMarkers pageMarkers = new PageMarkers(Integer.parseInt(line
+                .substring(N_LINES_PREFIX.length())));
+            String[] tokens;
+            while((line = in.readLine()) != null) {
+                if(line.equals(END)) {
+                    return pageMarkers;
+                }
+                if(!line.startsWith(MARKER_PREFIX)) {
+                    return null;
+                }
+                tokens = line.split("\t");
+                if(tokens.length != 6) {
+                    return null;
+                }
+                pageMarkers.getMarkers(Integer.parseInt(tokens[1])).add(
+                    new RMarkerScanner.Marker(RMarkerScanner.Type
+                        .valueOf(tokens[2]), Integer.parseInt(tokens[3]),
+                        Integer.parseInt(tokens[4]), Double
+                            .parseDouble(tokens[5])));
+            }
+            // No end line, so it is incomplete
+            return null;
+        } catch(IllegalArgumentException ex) {
+            // Includes NumberFormatException and an invalid line or type
+            return null;
+        } catch(IndexOutOfBoundsException ex) {
+            return null;
+        } finally {
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * Saves the markers for a key.
+     *
+     * @param key The key from key().
+     * @param pageMarkers The markers.
+     * @throws IOException
+     */
+    public void put(String key, PageMarkers pageMarkers) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = fileFor(key);
+        File tmpFile = File.createTempFile("page", ".tmp", dir);
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(tmpFile));
+            out.print(HEADER + "\n");
+            out.print(KEY_PREFIX + key + "\n");
+            int nLines = pageMarkers.getNLines();
+            out.print(N_LINES_PREFIX + nLines + "\n");
+            for(int line = 0; line < nLines; line++) {
+                List<RMarkerScanner.Marker> markers = pageMarkers
+                    .getMarkers(line);
+                for(RMarkerScanner.Marker marker : markers) {
+                    // Double.toString gives back the same double
+                    out.print(MARKER_PREFIX + line + "\t" + marker.getType()
+                        + "\t" + marker.getX() + "\t" + marker.getNPoints()
+                        + "\t" + marker.getXMarker() + "\n");
+                }
+            }
+            out.print(END + "\n");
+            out.close();
+            if(out.checkError()) {
+                throw new IOException("Error writing " + tmpFile);
+            }
+            out = null;
+            // Another thread may have saved the same page
+            if(file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace " + file);
+            }
+            if(!tmpFile.renameTo(file) && !file.exists()) {
+                throw new IOException("Cannot rename " + tmpFile + " to "
+                    + file);
+            }
+        } finally {
+            if(out != null) out.close();
+            if(tmpFile.exists()) tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns the cache file for a key.
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    private File fileFor(String key) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IOException("No SHA-256", ex);
+        }
+        byte[] bytes = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(64 + SUFFIX.length());
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        sb.append(SUFFIX);
+        return new File(dir, sb.toString());
+    }
+
+}
@@ -0,0 +1,246 @@
+package net.kenevans.ecgutils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ProcessingManifest records, for each input file processed, its size, last
+ * modified time, a SHA-256 hash of its contents, and the summary row it
+ * produced, together with a string describing the parameters used. On a later
+ * run, an input whose contents and the parameters have not changed can reuse
+ * its summary row instead of being processed again.
+ *
+ * If the size and last modified time match, the file is assumed unchanged
+ * without hashing it. Otherwise the hash decides, so a file that was only
+ * touched is still reused. If the parameters differ, all entries are
+ * discarded.
+ *
+ * The manifest is a text file with a parameters line followed by one line per
+ * input of the form path TAB size TAB mtime TAB hash TAB summary. Only the
+ * entries put during this run are saved, so inputs that no longer exist are
+ * dropped. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class ProcessingManifest
+{
+    private static final String HEADER = "# ProcessingManifest 1";
+    private static final String PARAMS_PREFIX = "params\t";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final String params;
+    /** The entries read from the file, by path. */
+    private final HashMap<String, Entry> oldEntries = new HashMap<String, Entry>();
+    /** The entries to save, by path, in the order put. */
+    private final LinkedHashMap<String, Entry> newEntries = new LinkedHashMap<String, Entry>();
+    /** Hashes computed by getSummary, by path, to reuse in put. */
+    private final HashMap<String, String> computedHashes = new HashMap<String, String>();
+
+    /**
+     * Entry is the record for one input file.
+     *
+     * @author Kenneth Evans, Jr.
+     */
+    private static class Entry
+    {
+        long size;
+        long lastModified;
+        String hash;
+        String summary;
+    }
+
+    /**
+     * ProcessingManifest constructor. Use load() to read an existing manifest.
+     *
+     * @param file The manifest file.
+     * @param params A string that changes whenever a parameter that affects
+     *            the results changes. It should not contain line breaks.
+     */
+    public ProcessingManifest(File file, String params) {
+        this.file = file;
+        this.params = params;
+    }
+
+    /**
+     * Reads the manifest file if it exists. Entries are kept only if they were
+     * made with the same parameters.
+     *
+     * @return The number of entries that may be reused.
+     * @throws IOException
+     */
+    public int load() throws IOException {
+        oldEntries.clear();
+        if(!file.exists()) {
+            return 0;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line = in.readLine();
+            if(line == null || !line.equals(HEADER)) {
+                System.out.println("Ignoring invalid manifest: " + file);
+                return 0;
+            }
+            line = in.readLine();
+            if(line == null || !line.equals(PARAMS_PREFIX + params)) {
+                System.out.println("Parameters changed, ignoring manifest");
+                return 0;
+            }
+            String[] tokens;
+            while((line = in.readLine()) != null) {
+                if(line.length() == 0) continue;
+                // The summary is last and may contain tabs
+                tokens = line.split("\t", 5);
+                if(tokens.length != 5) {
+                    continue;
+                }
+                Entry entry = new Entry();
+                try {
+                    entry.size = Long.parseLong(tokens[1]);
+                    entry.lastModified = Long.parseLong(tokens[2]);
+                } catch(NumberFormatException ex) {
+                    continue;
+                }
+                entry.hash = tokens[3];
+                entry.summary = tokens[4];
+                oldEntries.put(tokens[0], entry);
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        return oldEntries.size();
+    }
+
+    /**
+     * Returns the summary row saved for the given input if its contents are
+     * unchanged. The entry is then kept when the manifest is saved.
+     *
+     * @param input
+     * @return The summary row or null if the input is new or changed.
+     * @throws IOException
+     */
+    public String getSummary(File input) throws IOException {
+        String path = input.getPath();
+        Entry entry = oldEntries.get(path);
+        if(entry == null) {
+            return null;
+        }
+        long size = input.length();
+        long lastModified = input.lastModified();
+        if(size != entry.size) {
+            return null;
+        }
+        if(lastModified != entry.lastModified) {
+            String hash = hash(input);
+            computedHashes.put(path, hash);
+            if(!hash.equals(entry.hash)) {
+                return null;
+            }
+            entry.lastModified = lastModified;
+        }
+        newEntries.put(path, entry);
+        return entry.summary;
+    }
+
+    /**
+     * Records the summary row for the given input, which has just been
+     * processed.
+     *
+     * @param input
+     * @param summary The summary row without the line separator.
+     * @throws IOException
+     */
+    public void put(File input, String summary) throws IOException {
+        String path = input.getPath();
+        Entry entry = new Entry();
+        entry.size = input.length();
+        entry.lastModified = input.lastModified();
+        entry.hash = computedHashes.remove(path);
+        if(entry.hash == null) {
+            entry.hash = hash(input);
+        }
+        entry.summary = summary;
+        newEntries.put(path, entry);
+    }
+
+    /**
+     * Writes the entries that were reused or put during this run. The file is
+     * written to a temporary file first, then renamed.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(tmpFile));
+            out.print(HEADER + "\n");
+            out.print(PARAMS_PREFIX + params + "\n");
+            for(Map.Entry<String, Entry> mapEntry : newEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.print(mapEntry.getKey() + "\t" + entry.size + "\t"
+                    + entry.lastModified + "\t" + entry.hash + "\t"
+                    + entry.summary + "\n");
+            }
+            out.close();
+            if(out.checkError()) {
+                throw new IOException("Error writing " + tmpFile);
+            }
+            out = null;
+        } finally {
+            if(out != null) out.close();
+        }
+        if(file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if(!tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * Computes the hash of the contents of a file.
+     *
+     * @param input
+     * @return The hash as a hex string.
+     * @throws IOException
+     */
+    public static String hash(File input) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IOException("No " + HASH_ALGORITHM, ex);
+        }
+        FileInputStream in = null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            in = new FileInputStream(input);
+            int nRead;
+            while((nRead = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, nRead);
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for(byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,259 @@
+package net.kenevans.ecgutils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.List;
+
+/**
+ * RMarkerScanner finds the R markers on a scan line of an AliveCor page image.
+ * A marker is a run of pixels of the marker color. A run of 6 is an isolated
+ * marker, a run of 7 to 9 is a marker overlapping a grid line, and a longer
+ * run is a bad marker. Shorter runs, and a run still open at the right edge,
+ * are not markers.
+ *
+ * Each row is read once from the raster into an int[] of ARGB values, which
+ * gives the same values as BufferedImage.getRGB without calling the color
+ * model for every pixel, and the runs are found in that array. The common
+ * image types are read directly, and others use the bulk form of getRGB. The
+ * row above, used to tell which side of an overlapping marker is the grid
+ * line, is only read if there is an overlapping marker.
+ *
+ * The row buffers are kept, so an instance can be reused for many images. Not
+ * thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class RMarkerScanner
+{
+    /** The width in pixels of an isolated marker. */
+    public static final int MARKER_WIDTH = 6;
+    /** The widest run that is a marker overlapping a grid line. */
+    public static final int MAX_OVERLAPPING_WIDTH = 9;
+
+    /**
+     * Type The kinds of markers.
+     *
+     * @author Kenneth Evans, Jr.
+     */
+    public static enum Type {
+        /** A marker by itself. */
+        ISOLATED,
+        /** A marker overlapping a grid line. */
+        OVERLAPPING,
+        /** A run that is too wide. It has no position. */
+        BAD
+    };
+
+    private int[] row = new int[0];
+    private int[] probeRow = new int[0];
+    private byte[] bytes = new byte[0];
+    private int[] palette;
+    private ColorModel paletteModel;
+
+    /**
+     * Finds the markers on a row.
+     *
+     * @param image The image.
+     * @param y The row to scan.
+     * @param probeY The row to check for the marker color above an
+     *            overlapping marker.
+     * @param markerRGB The ARGB value of the marker color.
+     * @param markers The list to add the markers to in order of x.
+     * @return The number of markers added.
+     */
+    public int scanRow(BufferedImage image, int y, int probeY, int markerRGB,
+        List<Marker> markers) {
+        int width = image.getWidth();
+        row = readRow(image, y, row);
+        boolean haveProbe = false;
+        int nAdded = 0;
+        int x = 0, start, nPoints;
+        int[] pixels = row;
+        double xMarker;
+        while(x < width) {
+            if(pixels[x] != markerRGB) {
+                x++;
+                continue;
+            }
+            start = x;
+            while(x < width && pixels[x] == markerRGB) {
+                x++;
+            }
+            // A run that reaches the edge is never ended
+            if(x == width) break;
+            nPoints = x - start;
+            if(nPoints < MARKER_WIDTH) {
+                // Not a marker
+                continue;
+            } else if(nPoints > MAX_OVERLAPPING_WIDTH) {
+                markers.add(new Marker(Type.BAD, x, nPoints, Double.NaN));
+            } else if(nPoints == MARKER_WIDTH) {
+                // The sum of start to x - 1 over the number of points
+                xMarker = (double)(nPoints * (start + x - 1) / 2)
+                    / (double)nPoints;
+                markers.add(new Marker(Type.ISOLATED, x, nPoints, xMarker));
+            } else {
+                if(!haveProbe) {
+                    probeRow = readRow(image, probeY, probeRow);
+                    haveProbe = true;
+                }
+                // Check if the space above is a marker color
+                if(probeRow[x - 1] == markerRGB) {
+                    // Not a grid line, must be the right edge
+                    xMarker = (6. * x - 1.) / 6.;
+                } else {
+                    // Is a gridLine, marker starts at left edge
+                    xMarker = (6. * (x - nPoints) + 15.) / 6.;
+                }
+                markers.add(new Marker(Type.OVERLAPPING, x, nPoints, xMarker));
+            }
+            nAdded++;
+        }
+        return nAdded;
+    }
+
+    /**
+     * Reads a row of an image as ARGB values, the same as
+     * image.getRGB(0, y, width, 1, argb, 0, width).
+     *
+     * @param image The image.
+     * @param y The row.
+     * @param argb The array to use if it is big enough. May be null.
+     * @return The array with the values, which may be a new one.
+     */
+    public int[] readRow(BufferedImage image, int y, int[] argb) {
+        int width = image.getWidth();
+        if(argb == null || argb.length < width) {
+            argb = new int[width];
+        }
+        WritableRaster raster = image.getRaster();
+        int i, j;
+        switch(image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+            raster.getDataElements(0, y, width, 1, argb);
+            break;
+        case BufferedImage.TYPE_INT_RGB:
+            raster.getDataElements(0, y, width, 1, argb);
+            for(i = 0; i < width; i++) {
+                argb[i] |= 0xff000000;
+            }
+            break;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            // The elements are in band order, R, G, B
+            ensureBytes(3 * width);
+            raster.getDataElements(0, y, width, 1, bytes);
+            for(i = 0, j = 0; i < width; i++, j += 3) {
+                argb[i] = 0xff000000 | (bytes[j] & 0xff) << 16
+                    | (bytes[j + 1] & 0xff) << 8 | (bytes[j + 2] & 0xff);
+            }
+            break;
+        case BufferedImage.TYPE_4BYTE_ABGR:
+            // The elements are in band order, R, G, B, A
+            ensureBytes(4 * width);
+            raster.getDataElements(0, y, width, 1, bytes);
+            for(i = 0, j = 0; i < width; i++, j += 4) {
+                argb[i] = (bytes[j + 3] & 0xff) << 24
+                    | (bytes[j] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8
+                    | (bytes[j + 2] & 0xff);
+            }
+            break;
+        case BufferedImage.TYPE_BYTE_INDEXED:
+            ensureBytes(width);
+            raster.getDataElements(0, y, width, 1, bytes);
+            int[] colors = paletteFor((IndexColorModel)image.getColorModel());
+            for(i = 0; i < width; i++) {
+                argb[i] = colors[bytes[i] & 0xff];
+            }
+            break;
+        default:
+            image.getRGB(0, y, width, 1, argb, 0, width);
+            break;
+        }
+        return argb;
+    }
+
+    private void ensureBytes(int n) {
+        if(bytes.length < n) {
+            bytes = new byte[n];
+        }
+    }
+
+    /**
+     * Returns the ARGB values for all 256 indices of the color model, which is
+     * usually the same for all the pages.
+     *
+     * @param cm
+     * @return
+     */
+    private int[] paletteFor(IndexColorModel cm) {
+        if(cm != paletteModel) {
+            palette = new int[256];
+            for(int i = 0; i < 256; i++) {
+                palette[i] = cm.getRGB(i);
+            }
+            paletteModel = cm;
+        }
+        return palette;
+    }
+
+    /**
+     * Marker holds a marker found on a row.
+     *
+     * @author Kenneth Evans, Jr.
+     */
+    public static class Marker
+    {
+        private final Type type;
+        private final int x;
+        private final int nPoints;
+        private final double xMarker;
+
+        /**
+         * Marker constructor.
+         *
+         * @param type The Type.
+         * @param x The first x after the run.
+         * @param nPoints The width of the run.
+         * @param xMarker The x position of the marker or NaN for a bad
+         *            marker.
+         */
+        public Marker(Type type, int x, int nPoints, double xMarker) {
+            this.type = type;
+            this.x = x;
+            this.nPoints = nPoints;
+            this.xMarker = xMarker;
+        }
+
+        /**
+         * @return The Type.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The first x after the run.
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * @return The width of the run.
+         */
+        public int getNPoints() {
+            return nPoints;
+        }
+
+        /**
+         * @return The x position of the marker or NaN for a bad marker.
+         */
+        public double getXMarker() {
+            return xMarker;
+        }
+
+    }
+
+}
@@ -4,10 +4,22 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
-import java.util.ListIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
@@ -41,14 +53,84 @@ public class ReadEliteHRV
      * @see #HXM_FILE_DIR
      */
     private static final boolean TEST = false;
+    /** Whether to process the .txt files in parallel in TXT mode. */
+    private static final boolean PARALLEL = true;
+    /** The number of worker threads for PARALLEL. */
+    private static final int N_THREADS = Runtime.getRuntime()
+        .availableProcessors();
+    /**
+     * Whether to read the CSV file in CSV mode in a separate thread with
+     * bounded memory.
+     */
+    private static final boolean STREAM_CSV = true;
+    /** The maximum number of sessions waiting to be processed in STREAM_CSV. */
+    private static final int STREAM_QUEUE_SIZE = 16;
+    /** The interval in ms between progress reports in STREAM_CSV. */
+    private static final long PROGRESS_INTERVAL = 5000;
+    /**
+     * Whether to keep a manifest in TXT mode so unchanged .txt files reuse
+     * their summary rows instead of being processed again.
+     * 
+     * @see #manifestName
+     */
+    private static final boolean USE_MANIFEST = true;
     /** Whether to write HxM files for each line. */
     private static final boolean WRITE_HXM_FILE = true;
+    /** Whether to also write a binary HxM file next to each HxM file. */
+    private static final boolean WRITE_HXM_BINARY_FILE = false;
+    /**
+     * Whether to write a file of HRV metrics over a sliding window, one row per
+     * beat, for each session. The files are written in the directory of
+     * outName.
+     */
+    private static final boolean WRITE_ROLLING_FILE = false;
+    /** The maximum number of beats in the rolling window, or 0 for no limit. */
+    private static final int ROLLING_WINDOW_BEATS = 0;
+    /** The maximum span of the rolling window in sec, or 0 for no limit. */
+    private static final double ROLLING_WINDOW_SECONDS = 300;
+    private static final String ROLLING_CSV_TEMPLATE = "EliteHRVRolling-%04d-%02d-%02d-%02d-%02d-%02d.csv";
+    /**
+     * Whether to add the LF and HF power and LF/HF to the summary, found from
+     * a Lomb-Scargle periodogram of the unmarked RR values.
+     */
+    private static final boolean COMPUTE_FREQUENCY_DOMAIN = true;
+    /** The LF band in Hz. */
+    private static final double LF_LOW = .04, LF_HIGH = .15;
+    /** The HF band in Hz. */
+    private static final double HF_LOW = .15, HF_HIGH = .4;
+    /**
+     * Whether to add the nonlinear metrics SD1 and SD2 from the Poincare plot,
+     * the sample entropy, and the DFA alpha1 to the summary.
+     */
+    private static final boolean COMPUTE_NONLINEAR = true;
+    /** The template length for the sample entropy. */
+    private static final int SAMPEN_M = 2;
+    /** The sample entropy tolerance as a fraction of the SDNN. */
+    private static final double SAMPEN_R = .2;
     /** Whether to filter outliers from the RR values. */
     private static final boolean FILTER_OUTLIERS = false;
     /** The threshold for marking outliers. */
     private static final double THRESHOLD = .10;
     /** The moving average window for marking outliers. */
     private static final int HWIN = 20;
+    /** How to mark outliers. */
+    private static final ECGUtils.OutlierMethod OUTLIER_METHOD = ECGUtils.OutlierMethod.MOVING_AVERAGE;
+    // private static final ECGUtils.OutlierMethod OUTLIER_METHOD =
+    // ECGUtils.OutlierMethod.CENTERED_MEAN;
+    // private static final ECGUtils.OutlierMethod OUTLIER_METHOD =
+    // ECGUtils.OutlierMethod.CENTERED_MEDIAN;
+    /**
+     * Whether to replace the outliers by interpolating from the neighboring
+     * values, rather than skipping them, for the metrics and files.
+     */
+    private static final boolean CORRECT_ARTIFACTS = false;
+    // private static final boolean CORRECT_ARTIFACTS = true;
+    /** How to interpolate the outliers. */
+    // private static final ArtifactCorrector.Method CORRECTION_METHOD =
+    // ArtifactCorrector.Method.LINEAR;
+    private static final ArtifactCorrector.Method CORRECTION_METHOD = ArtifactCorrector.Method.CUBIC_SPLINE;
+    /** The longest run of outliers to interpolate. Longer runs are skipped. */
+    private static final int MAX_CORRECTION_GAP = 5;
     // Old data needed to be converted to ms
     // private static final double RR_RAW_CONVERSION_FACTOR = 1.024;
     // Data as of 2016-08-17 are ms and don't need conversion
@@ -94,10 +176,81 @@ public class ReadEliteHRV
     private static final String outName = TEST
         ? "C:/Scratch/ECG/Elite HRV/EliteHRVData.test." + readMode + ".csv"
         : "C:/Scratch/ECG/Elite HRV/EliteHRVData.csv";
+    /**
+     * Name of the manifest file for USE_MANIFEST. Depends on the value of
+     * TEST.
+     * 
+     * @see #TEST
+     * @see #USE_MANIFEST
+     */
+    private static final String manifestName = TEST
+        ? "C:/Scratch/ECG/Elite HRV/EliteHRVData.test.manifest"
+        : "C:/Scratch/ECG/Elite HRV/EliteHRVData.manifest";
 
     private static int nWriteHxMErrors;
     private static int nHxMFilesWritten;
+    private static int nWriteRollingErrors;
+    private static int nRollingFilesWritten;
     private static int nErrors;
+    private static int nReused;
+
+    /** Lomb-Scargle for COMPUTE_FREQUENCY_DOMAIN, with buffers per thread. */
+    private static final ThreadLocal<LombScargle> lombScargle = new ThreadLocal<LombScargle>() {
+        @Override
+        protected LombScargle initialValue() {
+            return new LombScargle();
+        }
+    };
+    /** Corrector for CORRECT_ARTIFACTS, with buffers per thread. */
+    private static final ThreadLocal<ArtifactCorrector> artifactCorrector = new ThreadLocal<ArtifactCorrector>() {
+        @Override
+        protected ArtifactCorrector initialValue() {
+            return new ArtifactCorrector(CORRECTION_METHOD,
+                MAX_CORRECTION_GAP);
+        }
+    };
+    /** Sample entropy for COMPUTE_NONLINEAR, with buffers per thread. */
+    private static final ThreadLocal<SampleEntropy> sampleEntropy = new ThreadLocal<SampleEntropy>() {
+        @Override
+        protected SampleEntropy initialValue() {
+            return new SampleEntropy();
+        }
+    };
+    /** DFA for COMPUTE_NONLINEAR, with buffers per thread. */
+    private static final ThreadLocal<Dfa> dfa = new ThreadLocal<Dfa>() {
+        @Override
+        protected Dfa initialValue() {
+            return new Dfa();
+        }
+    };
+
+    /**
+     * SessionCounts holds the HxM counts for one or more sessions so they can
+     * be kept per task and added up afterward.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    private static class SessionCounts
+    {
+        int nWriteHxMErrors;
+        int nHxMFilesWritten;
+        int nWriteRollingErrors;
+        int nRollingFilesWritten;
+    }
+
+    /**
+     * SessionResult is the result of processing one .txt file in a worker.
+     * 
+     * @author Kenneth Evans, Jr.
+     */
+    private static class SessionResult
+    {
+        File file;
+        String summary;
+        SessionCounts counts = new SessionCounts();
+        /** Whether the summary was reused from the manifest. */
+        boolean reused;
+    }
 
     /**
      * ReadMode Ways the data are stored.
@@ -119,25 +272,23 @@ public class ReadEliteHRV
             .println("RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
         nWriteHxMErrors = 0;
         nHxMFilesWritten = 0;
+        nWriteRollingErrors = 0;
+        nRollingFilesWritten = 0;
         nErrors = 0;
+        nReused = 0;
         // Check if parameters are ok
         if(!checkParameters()) {
             return;
         }
         int nFiles = 0;
-        BufferedReader in = null;
-        PrintWriter out = null;
-        int[] rrVals;
-        ArrayList<Integer> rrInList = null;
+        SummaryRowWriter out = null;
         String timeStamp = null;
         String curFile = "Starting";
+        SessionResult result;
         try {
-            out = new PrintWriter(new FileWriter(outName));
-            out.write(
-                "Time,MinHr,AvgHR,MaxHr,RMSSD,LnRMSSD,SDNN,NN50,PNN50,nRRVals,HRV"
-                    + LS);
-            String line;
-            int rr;
+            ProcessingManifest manifest = loadManifest();
+            out = new SummaryRowWriter(new FileWriter(outName), DELIMITER);
+            out.write(summaryHeader() + LS);
             // Get the files
             File inDir = new File(inTxtDir);
             File[] txtFiles = inDir.listFiles();
@@ -153,33 +304,349 @@ public class ReadEliteHRV
                     continue;
                 }
                 nFiles++;
-                in = new BufferedReader(new FileReader(file));
-                // Get the RR values
-                rrInList = new ArrayList<Integer>();
-                while((line = in.readLine()) != null) {
-                    if(line.length() == 0) continue;
-                    rr = Integer.parseInt(line);
-                    rrInList.add(rr);
+                result = getReusedResult(manifest, file, timeStamp);
+                if(result == null) {
+                    result = processTxtFile(file, timeStamp);
                 }
-                in.close();
-                rrVals = new int[rrInList.size()];
-                int i = 0;
-                for(int iVal : rrInList) {
-                    rrVals[i++] = iVal;
+                writeSessionResult(out, result, manifest);
+            }
+            out.close();
+            if(manifest != null) {
+                manifest.save();
+            }
+            System.out.println("Total files processed: " + +nFiles + " "
+                + "Non-matching files: " + nErrors);
+            if(manifest != null) {
+                System.out.println("Unchanged files reused: " + nReused);
+            }
+            printFileCounts();
+        } catch(Exception ex) {
+            System.err.println("Error at file " + curFile);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Process from multiple text files in parallel. The files are ordered by
+     * time stamp and processed by a pool of N_THREADS workers, each with its
+     * own counts. The summary lines are written in time stamp order. At most
+     * 2 * N_THREADS results are held waiting to be written. Files that are
+     * unchanged according to the manifest are not submitted.
+     */
+    public static void processTxtParallel() {
+        System.out.println("TXT Mode (Parallel, " + N_THREADS + " threads)");
+        System.out.println("Input Directory: " + inTxtDir);
+        System.out.println("Output: " + outName);
+        System.out
+            .println("RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
+        nWriteHxMErrors = 0;
+        nHxMFilesWritten = 0;
+        nWriteRollingErrors = 0;
+        nRollingFilesWritten = 0;
+        nErrors = 0;
+        nReused = 0;
+        // Check if parameters are ok
+        if(!checkParameters()) {
+            return;
+        }
+        // Get the files and their time stamps
+        File inDir = new File(inTxtDir);
+        File[] txtFiles = inDir.listFiles();
+        if(txtFiles == null) {
+            System.out.println("Cannot list " + inDir.getPath());
+            return;
+        }
+        final ArrayList<File> files = new ArrayList<File>();
+        final ArrayList<String> timeStamps = new ArrayList<String>();
+        // Sort by name so files with the same time stamp are in a fixed order
+        Arrays.sort(txtFiles);
+        for(File file : txtFiles) {
+            if(file.isDirectory()) {
+                continue;
+            }
+            String timeStamp = timeStampFromFile(file);
+            if(timeStamp == null) {
+                nErrors++;
+                continue;
+            }
+            files.add(file);
+            timeStamps.add(timeStamp);
+        }
+        Integer[] order = new Integer[files.size()];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return timeStamps.get(i1).compareTo(timeStamps.get(i2));
+            }
+        });
+
+        int nFiles = 0;
+        SummaryRowWriter out = null;
+        String curFile = "Starting";
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        // Futures in time stamp order, waiting to be written
+        ArrayDeque<Future<SessionResult>> pending = new ArrayDeque<Future<SessionResult>>();
+        ArrayDeque<String> pendingFiles = new ArrayDeque<String>();
+        try {
+            ProcessingManifest manifest = loadManifest();
+            out = new SummaryRowWriter(new FileWriter(outName), DELIMITER);
+            out.write(summaryHeader() + LS);
+            for(int i : order) {
+                final File file = files.get(i);
+                final String timeStamp = timeStamps.get(i);
+                nFiles++;
+                curFile = file.getPath();
+                final SessionResult reused = getReusedResult(manifest, file,
+                    timeStamp);
+                if(reused != null) {
+                    // Already done, but keep it in order
+                    FutureTask<SessionResult> task = new FutureTask<SessionResult>(
+                        new Callable<SessionResult>() {
+                            @Override
+                            public SessionResult call() throws Exception {
+                                return reused;
+                            }
+                        });
+                    task.run();
+                    pending.add(task);
+                } else {
+                    pending.add(executor.submit(new Callable<SessionResult>() {
+                        @Override
+                        public SessionResult call() throws Exception {
+                            return processTxtFile(file, timeStamp);
+                        }
+                    }));
                 }
-                processSession(out, timeStamp, rrVals);
+                pendingFiles.add(file.getPath());
+                if(pending.size() >= 2 * N_THREADS) {
+                    curFile = pendingFiles.remove();
+                    writeSessionResult(out, pending.remove().get(), manifest);
+                }
+            }
+            while(!pending.isEmpty()) {
+                curFile = pendingFiles.remove();
+                writeSessionResult(out, pending.remove().get(), manifest);
             }
             out.close();
+            if(manifest != null) {
+                manifest.save();
+            }
             System.out.println("Total files processed: " + +nFiles + " "
                 + "Non-matching files: " + nErrors);
-            if(WRITE_HXM_FILE) {
-                System.out.println("FilesWritten: " + nHxMFilesWritten + " "
-                    + "Bad files: " + nWriteHxMErrors);
+            if(manifest != null) {
+                System.out.println("Unchanged files reused: " + nReused);
             }
+            printFileCounts();
+        } catch(ExecutionException ex) {
+            System.err.println("Error at file " + curFile);
+            ex.getCause().printStackTrace();
         } catch(Exception ex) {
             System.err.println("Error at file " + curFile);
             ex.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ex) {
+                    // Already reported or closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes one .txt file. Called from the worker threads in
+     * processTxtParallel.
+     * 
+     * @param file
+     * @param timeStamp
+     * @return The SessionResult with the summary line and counts.
+     * @throws IOException
+     */
+    private static SessionResult processTxtFile(File file, String timeStamp)
+        throws IOException {
+        SessionResult result = new SessionResult();
+        result.file = file;
+        StringWriter sw = new StringWriter();
+        SummaryRowWriter out = new SummaryRowWriter(sw, DELIMITER);
+        processSession(out, timeStamp, readTxtFile(file), result.counts);
+        out.flush();
+        result.summary = sw.toString();
+        return result;
+    }
+
+    /**
+     * Writes the summary line from a SessionResult and adds its counts to the
+     * totals. If there is a manifest, records a newly processed file in it,
+     * unless writing its HxM file failed.
+     * 
+     * @param out
+     * @param result
+     * @param manifest The manifest or null.
+     * @throws IOException
+     */
+    private static void writeSessionResult(SummaryRowWriter out,
+        SessionResult result, ProcessingManifest manifest) throws IOException {
+        out.write(result.summary);
+        addCounts(result.counts);
+        if(result.reused) {
+            nReused++;
+        } else if(manifest != null && result.counts.nWriteHxMErrors == 0
+            && result.counts.nWriteRollingErrors == 0) {
+            String summary = result.summary;
+            if(summary.endsWith(LS)) {
+                summary = summary.substring(0,
+                    summary.length() - LS.length());
+            }
+            manifest.put(result.file, summary);
+        }
+    }
+
+    /**
+     * Returns a SessionResult with the summary row from the manifest if the
+     * file is unchanged and its HxM and rolling files, if any, still exist.
+     * 
+     * @param manifest The manifest or null.
+     * @param file
+     * @param timeStamp
+     * @return The SessionResult or null if the file needs to be processed.
+     * @throws IOException
+     */
+    private static SessionResult getReusedResult(ProcessingManifest manifest,
+        File file, String timeStamp) throws IOException {
+        if(manifest == null) return null;
+        String summary = manifest.getSummary(file);
+        if(summary == null) return null;
+        if(WRITE_HXM_FILE && !hxmFileFor(timeStamp).exists()) return null;
+        if(WRITE_ROLLING_FILE && !rollingFileFor(timeStamp).exists()) {
+            return null;
+        }
+        SessionResult result = new SessionResult();
+        result.file = file;
+        result.summary = summary + LS;
+        result.reused = true;
+        return result;
+    }
+
+    /**
+     * Reads the manifest if USE_MANIFEST is set.
+     * 
+     * @return The manifest or null if not used.
+     */
+    private static ProcessingManifest loadManifest() {
+        if(!USE_MANIFEST) return null;
+        ProcessingManifest manifest = new ProcessingManifest(
+            new File(manifestName), manifestParams());
+        try {
+            int nEntries = manifest.load();
+            System.out.println("Manifest: " + manifestName + " (" + nEntries
+                + " entries)");
+        } catch(IOException ex) {
+            System.out.println("Cannot read manifest, processing all files: "
+                + ex.getMessage());
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns a string with the values of the parameters that affect the
+     * summary rows and HxM files, for the manifest.
+     * 
+     * @return
+     */
+    private static String manifestParams() {
+        return "COLUMNS=" + summaryHeader() + ",THRESHOLD=" + THRESHOLD
+            + ",HWIN=" + HWIN + ",FILTER_OUTLIERS=" + FILTER_OUTLIERS
+            + ",OUTLIER_METHOD=" + OUTLIER_METHOD
+            + ",CORRECT_ARTIFACTS=" + CORRECT_ARTIFACTS
+            + ",CORRECTION_METHOD=" + CORRECTION_METHOD
+            + ",MAX_CORRECTION_GAP=" + MAX_CORRECTION_GAP
+            + ",RR_RAW_CONVERSION_FACTOR=" + RR_RAW_CONVERSION_FACTOR
+            + ",MOVING_AVG_LENGTH=" + MOVING_AVG_LENGTH + ",WRITE_HXM_FILE="
+            + WRITE_HXM_FILE + ",WRITE_HXM_BINARY_FILE="
+            + WRITE_HXM_BINARY_FILE + ",HXM_FILE_DIR=" + HXM_FILE_DIR
+            + ",AHRV=" + AHRV + ",BHRV=" + BHRV + ",SAMPEN_M=" + SAMPEN_M
+            + ",SAMPEN_R=" + SAMPEN_R + ",LF_LOW=" + LF_LOW + ",LF_HIGH="
+            + LF_HIGH + ",HF_LOW=" + HF_LOW + ",HF_HIGH=" + HF_HIGH
+            + ",OFAC=" + LombScargle.DEFAULT_OFAC + ",DELIMITER="
+            + DELIMITER.replace("\t", "\\t") + ",WRITE_ROLLING_FILE="
+            + WRITE_ROLLING_FILE + ",ROLLING_WINDOW_BEATS="
+            + ROLLING_WINDOW_BEATS + ",ROLLING_WINDOW_SECONDS="
+            + ROLLING_WINDOW_SECONDS;
+    }
+
+    /**
+     * Returns the header for the summary file, without the line separator.
+     * 
+     * @return
+     */
+    private static String summaryHeader() {
+        String header = "Time,MinHr,AvgHR,MaxHr,RMSSD,LnRMSSD,SDNN,NN50,PNN50,nRRVals,HRV";
+        if(COMPUTE_FREQUENCY_DOMAIN) {
+            header += ",LF,HF,LF/HF";
+        }
+        if(COMPUTE_NONLINEAR) {
+            header += ",SD1,SD2,SampEn,DFAa1";
+        }
+        return header;
+    }
+
+    /**
+     * Adds the given counts to the totals.
+     * 
+     * @param counts
+     */
+    private static void addCounts(SessionCounts counts) {
+        nHxMFilesWritten += counts.nHxMFilesWritten;
+        nWriteHxMErrors += counts.nWriteHxMErrors;
+        nRollingFilesWritten += counts.nRollingFilesWritten;
+        nWriteRollingErrors += counts.nWriteRollingErrors;
+    }
+
+    /**
+     * Prints the numbers of HxM and rolling files written.
+     */
+    private static void printFileCounts() {
+        if(WRITE_HXM_FILE) {
+            System.out.println("FilesWritten: " + nHxMFilesWritten + " "
+                + "Bad files: " + nWriteHxMErrors);
+        }
+        if(WRITE_ROLLING_FILE) {
+            System.out.println("Rolling FilesWritten: " + nRollingFilesWritten
+                + " " + "Bad files: " + nWriteRollingErrors);
+        }
+    }
+
+    /**
+     * Reads the RR values from a .txt file, which has one value per line.
+     * 
+     * @param file
+     * @return The RR values.
+     * @throws IOException
+     */
+    private static int[] readTxtFile(File file) throws IOException {
+        BufferedReader in = null;
+        ArrayList<Integer> rrInList = new ArrayList<Integer>();
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.length() == 0) continue;
+                rrInList.add(Integer.parseInt(line));
+            }
+        } finally {
+            if(in != null) in.close();
+        }
+        int[] rrVals = new int[rrInList.size()];
+        int i = 0;
+        for(int iVal : rrInList) {
+            rrVals[i++] = iVal;
         }
+        return rrVals;
     }
 
     /**
@@ -193,6 +660,8 @@ public class ReadEliteHRV
             .println("RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
         nWriteHxMErrors = 0;
         nHxMFilesWritten = 0;
+        nWriteRollingErrors = 0;
+        nRollingFilesWritten = 0;
         nErrors = 0;
         // Check if parameters are ok
         if(!checkParameters()) {
@@ -200,36 +669,32 @@ public class ReadEliteHRV
         }
         int lineNum = 0;
         BufferedReader in = null;
-        PrintWriter out = null;
+        SummaryRowWriter out = null;
         String timeStamp = null;
         int nRrVals;
         int[] rrVals;
         try {
             in = new BufferedReader(new FileReader(inCsvName));
-            out = new PrintWriter(new FileWriter(outName));
-            out.write(
-                "Time,MinHr,AvgHR,MaxHr,RMSSD,LnRMSSD,SDNN,NN50,PNN50,nRRVals,HRV"
-                    + LS);
+            out = new SummaryRowWriter(new FileWriter(outName), DELIMITER);
+            out.write(summaryHeader() + LS);
             String line;
-            String[] tokens;
-            String[] rrTokens;
+            EliteHRVLineParser parser = new EliteHRVLineParser();
             while((line = in.readLine()) != null) {
                 lineNum++;
                 if(line.length() == 0) continue;
-                // Regex to read CSV files with some values quoted
-                tokens = line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+                // Scan the line, handling quoted values
+                parser.parse(line);
                 // First token is the date and time
                 // Second token is a comma-delimited string of raw RR values
                 // Other tokens may be user tags
-                if(tokens.length < 2) {
+                if(parser.getNFields() < 2) {
                     nErrors++;
                     System.out.println("Error at line " + lineNum);
                     System.out.println("  " + line);
                     continue;
                 }
                 // Get the rr values
-                rrTokens = tokens[1].replaceAll("\"", "").split(",");
-                nRrVals = rrTokens.length;
+                nRrVals = parser.getNRrTokens();
                 if(nRrVals < 2) {
                     nErrors++;
                     System.out
@@ -238,11 +703,11 @@ public class ReadEliteHRV
                     continue;
                 }
 
-                rrVals = new int[nRrVals];
-                for(int i = 0; i < nRrVals; i++) {
-                    rrVals[i] = Integer.parseInt(rrTokens[i]);
+                if(parser.getRrError() != null) {
+                    throw new NumberFormatException(parser.getRrError());
                 }
-                timeStamp = tokens[0];
+                rrVals = Arrays.copyOf(parser.getRrVals(), nRrVals);
+                timeStamp = parser.getTimeStamp();
                 processSession(out, timeStamp, rrVals);
             }
             in.close();
@@ -253,13 +718,102 @@ public class ReadEliteHRV
                 "RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
             System.out.println(
                 "Lines processed: " + lineNum + " " + "Bad lines: " + nErrors);
-            if(WRITE_HXM_FILE) {
-                System.out.println("FilesWritten: " + nHxMFilesWritten + " "
-                    + "Bad files: " + nWriteHxMErrors);
+            printFileCounts();
+        } catch(Exception ex) {
+            System.err.println("Error at line " + lineNum);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Process from a single CSV file, which is read in a separate thread by an
+     * EliteHRVExportReader. The sessions are passed through a bounded queue, so
+     * memory use does not depend on the size of the file. Progress is printed
+     * every PROGRESS_INTERVAL ms.
+     */
+    public static void processCSVStreaming() {
+        System.out.println("CSV Mode (Streaming)");
+        System.out.println("Input: " + inCsvName);
+        System.out.println("Output: " + outName);
+        System.out
+            .println("RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
+        nWriteHxMErrors = 0;
+        nHxMFilesWritten = 0;
+        nWriteRollingErrors = 0;
+        nRollingFilesWritten = 0;
+        nErrors = 0;
+        // Check if parameters are ok
+        if(!checkParameters()) {
+            return;
+        }
+        File inFile = new File(inCsvName);
+        long fileSize = inFile.length();
+        BlockingQueue<EliteHRVExportReader.Session> queue = new ArrayBlockingQueue<EliteHRVExportReader.Session>(
+            STREAM_QUEUE_SIZE);
+        EliteHRVExportReader reader = new EliteHRVExportReader(inFile, queue);
+        Thread readerThread = new Thread(reader, "EliteHRVExportReader");
+        readerThread.setDaemon(true);
+        SummaryRowWriter out = null;
+        int nSessions = 0;
+        int lineNum = 0;
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        try {
+            out = new SummaryRowWriter(new FileWriter(outName), DELIMITER);
+            out.write(summaryHeader() + LS);
+            readerThread.start();
+            EliteHRVExportReader.Session session;
+            while(true) {
+                session = queue.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if(now - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = now;
+                    double secs = .001 * (now - start);
+                    long bytesRead = reader.getBytesRead();
+                    System.out.println(String.format(
+                        "  %d of %d bytes (%.0f bytes/sec) %d sessions (%.1f sessions/sec)",
+                        bytesRead, fileSize, bytesRead / secs, nSessions,
+                        nSessions / secs));
+                }
+                if(session == null) continue;
+                if(session == EliteHRVExportReader.END) break;
+                lineNum = session.getLineNum();
+                if(session.getError() != null) {
+                    throw session.getError();
+                }
+                processSession(out, session.getTimeStamp(),
+                    session.getRrVals());
+                nSessions++;
             }
+            readerThread.join();
+            out.close();
+            out = null;
+            lineNum = reader.getNLines();
+            nErrors = reader.getNErrors();
+            double secs = .001 * (System.currentTimeMillis() - start);
+            System.out.println("Input: " + inCsvName);
+            System.out.println("Output: " + outName);
+            System.out.println(
+                "RR Raw Conversion Factor: " + RR_RAW_CONVERSION_FACTOR);
+            System.out.println(
+                "Lines processed: " + lineNum + " " + "Bad lines: " + nErrors);
+            printFileCounts();
+            System.out.println(String.format(
+                "Elapsed: %.1f sec (%.0f bytes/sec, %.1f sessions/sec)", secs,
+                fileSize / secs, nSessions / secs));
         } catch(Exception ex) {
             System.err.println("Error at line " + lineNum);
             ex.printStackTrace();
+        } finally {
+            // Stop the reader if it is waiting on the queue
+            readerThread.interrupt();
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ex) {
+                    // Already reported
+                }
+            }
         }
     }
 
@@ -269,116 +823,177 @@ public class ReadEliteHRV
      * @param out
      * @param timeStamp
      * @param rrIntVals
+     * @throws IOException
      */
-    public static void processSession(PrintWriter out, String timeStamp,
-        int[] rrIntVals) {
+    public static void processSession(SummaryRowWriter out, String timeStamp,
+        int[] rrIntVals) throws IOException {
+        SessionCounts counts = new SessionCounts();
+        processSession(out, timeStamp, rrIntVals, counts);
+        addCounts(counts);
+    }
+
+    /**
+     * Processes one session from either a .txt file or a line in a CSV file.
+     * Adds to the given counts rather than the static ones, so it may be
+     * called from multiple threads.
+     * 
+     * @param out
+     * @param timeStamp
+     * @param rrIntVals
+     * @param counts
+     * @throws IOException
+     */
+    private static void processSession(SummaryRowWriter out, String timeStamp,
+        int[] rrIntVals, SessionCounts counts) throws IOException {
         int nRrVals = rrIntVals.length;
         double[] rrVals = new double[nRrVals];
-        double[] hrVals = new double[nRrVals];
-        double[] rrVals1 = null;
-        double[] hrVals1 = null;
-        double[] sdVals1 = null;
-        Statistics rrStats = null;
-        Statistics hrStats = null;
-        Statistics sdStats = null;
         double sdnn, rmssd, minHr, maxHr, avgHr, lnRmssd, pnn50;
         long hrv;
-        int nn50;
+        int nn50, nRrVals1;
         int j = 0;
         for(int val : rrIntVals) {
             rrVals[j] = val * RR_RAW_CONVERSION_FACTOR;
-            hrVals[j] = 60000. / rrVals[j];
             j++;
         }
 
         // Mark outliers
-        ArrayList<MarkedDouble> rrList = MarkedDouble
-            .makeMarkedDoubleArray(rrVals);
+        MarkedSeries rrSeries = new MarkedSeries(rrVals);
         if(FILTER_OUTLIERS) {
-            ECGUtils.markOutliers(rrList, THRESHOLD, HWIN);
-        }
-
-        // Find out how many unmarked values there are
-        ListIterator<MarkedDouble> li = rrList.listIterator();
-        MarkedDouble md;
-        int nRrVals1 = 0;
-        while(li.hasNext()) {
-            md = li.next();
-            if(!md.getMarked()) {
-                nRrVals1++;
-            }
-        }
-        rrVals1 = new double[nRrVals1];
-        hrVals1 = new double[nRrVals1];
-        li = rrList.listIterator();
-        int ii = 0, jj = 0;
-        while(li.hasNext()) {
-            md = li.next();
-            if(!md.getMarked()) {
-                rrVals1[jj] = rrVals[ii];
-                hrVals1[jj] = hrVals[ii];
-                jj++;
+            ECGUtils.markOutliers(rrSeries, OUTLIER_METHOD, THRESHOLD, HWIN);
+            if(CORRECT_ARTIFACTS) {
+                // Interpolate the outliers. The corrected series wraps
+                // per-thread buffers, so the raw values are not copied and
+                // the rest uses it the same way.
+                rrSeries = artifactCorrector.get().correct(rrSeries);
             }
-            ii++;
         }
 
-        // Calculate the successive differences
-        sdVals1 = new double[nRrVals1 - 1];
-        nn50 = 0;
-        for(int i = 1; i < nRrVals1; i++) {
-            sdVals1[i - 1] = rrVals1[i] - rrVals1[i - 1];
-            if(Math.abs(sdVals1[i - 1]) > 50) {
-                nn50++;
-            }
-        }
-        pnn50 = (double)nn50 / (nRrVals1 - 1);
-
-        rrStats = new Statistics(rrVals1);
-        hrStats = new Statistics(hrVals1);
-        sdStats = new Statistics(sdVals1);
-        minHr = hrStats.getMin();
-        avgHr = hrStats.getMean();
-        maxHr = hrStats.getMax();
-        sdnn = rrStats.getSigma();
-        rmssd = sdStats.getRms();
+        // Calculate the metrics from the unmarked values in one pass
+        HrvMetrics metrics = new HrvMetrics();
+        metrics.compute(rrSeries);
+        nRrVals1 = metrics.getNRrVals();
+        nn50 = metrics.getNn50();
+        pnn50 = metrics.getPnn50();
+        minHr = metrics.getMinHr();
+        avgHr = metrics.getAvgHr();
+        maxHr = metrics.getMaxHr();
+        sdnn = metrics.getSdnn();
+        rmssd = metrics.getRmssd();
         lnRmssd = Math.log(rmssd);
         hrv = Math.round(AHRV + BHRV * lnRmssd);
 
         // DEBUG
         // System.out.print("RR:");
-        // for(int i = 0; i < nRrVals1; i++) {
-        // System.out.printf(" %8.2f", rrVals1[i]);
+        // for(int i = 0; i < rrSeries.size(); i++) {
+        // if(!rrSeries.getMarked(i)) {
+        // System.out.printf(" %8.2f", rrSeries.getVal(i));
         // }
-        // System.out.println();
-        // System.out.print("SD:");
-        // for(int i = 0; i < nRrVals1 - 1; i++) {
-        // System.out.printf(" %8.2f", sdVals1[i]);
         // }
         // System.out.println();
-        // System.out.printf("RMSSD=%.2f" + LS, rmssd);
-        // System.out.printf("Min%%=%.2f Max%%=%.2f " + LS,
-        // 100. * rrStats.getMin() / rrStats.getMean(),
-        // 100. * rrStats.getMax() / rrStats.getMean());
-
-        out.write(timeStamp);
-        out.write(DELIMITER + String.format("%.2f", minHr));
-        out.write(DELIMITER + String.format("%.2f", avgHr));
-        out.write(DELIMITER + String.format("%.2f", maxHr));
-        out.write(DELIMITER + String.format("%.2f", rmssd));
-        out.write(DELIMITER + String.format("%.2f", lnRmssd));
-        out.write(DELIMITER + String.format("%.2f", sdnn));
-        out.write(DELIMITER + String.format("%d", nn50));
-        out.write(DELIMITER + String.format("%.2f", pnn50 * 100));
-        out.write(DELIMITER + String.format("%d", nRrVals1));
-        out.write(DELIMITER + String.format("%d", hrv));
-        out.write(LS);
+        // System.out.printf("RMSSD=%.2f SDNN=%.2f" + LS, rmssd, sdnn);
+        // System.out.printf("MinHR=%.2f AvgHR=%.2f MaxHR=%.2f" + LS, minHr,
+        // avgHr, maxHr);
+
+        out.field(timeStamp);
+        out.field(minHr, 2);
+        out.field(avgHr, 2);
+        out.field(maxHr, 2);
+        out.field(rmssd, 2);
+        out.field(lnRmssd, 2);
+        out.field(sdnn, 2);
+        out.field(nn50);
+        out.field(pnn50 * 100, 2);
+        out.field(nRrVals1);
+        out.field(hrv);
+        if(COMPUTE_FREQUENCY_DOMAIN) {
+            // Times are in sec, converted to real time units
+            LombScargle ls = lombScargle.get();
+            ls.computeRr(rrSeries.getVals(), rrSeries.size(),
+                rrSeries.getMarks(), .001 / RR_RAW_CONVERSION_FACTOR, HF_HIGH);
+            double lf = ls.bandPower(LF_LOW, LF_HIGH);
+            double hf = ls.bandPower(HF_LOW, HF_HIGH);
+            out.field(lf, 2);
+            out.field(hf, 2);
+            out.field(lf / hf, 2);
+        }
+        if(COMPUTE_NONLINEAR) {
+            out.field(metrics.getSd1(), 2);
+            out.field(metrics.getSd2(), 2);
+            out.field(sampleEntropy.get().compute(rrSeries.getVals(),
+                rrSeries.size(), rrSeries.getMarks(), SAMPEN_M,
+                SAMPEN_R * sdnn), 3);
+            out.field(dfa.get().alpha1(rrSeries.getVals(), rrSeries.size(),
+                rrSeries.getMarks()), 3);
+        }
+        out.endRow();
 
         if(WRITE_HXM_FILE) {
-            nHxMFilesWritten++;
+            counts.nHxMFilesWritten++;
             //
-            boolean res = writeHxMFile(timeStamp, rrList);
+            boolean res = writeHxMFile(timeStamp, rrSeries);
             if(!res) {
-                nWriteHxMErrors++;
+                counts.nWriteHxMErrors++;
+            }
+        }
+        if(WRITE_ROLLING_FILE) {
+            counts.nRollingFilesWritten++;
+            boolean res = writeRollingFile(timeStamp, rrSeries);
+            if(!res) {
+                counts.nWriteRollingErrors++;
+            }
+        }
+    }
+
+    /**
+     * Writes a file of HRV metrics over a sliding window of the unmarked RR
+     * values, with one row for each beat.
+     * 
+     * @param startTimeString
+     * @param rrVals
+     * @return If successful.
+     */
+    public static boolean writeRollingFile(String startTimeString,
+        MarkedSeries rrVals) {
+        File rollingFile = rollingFileFor(startTimeString);
+        RollingHrv rolling = new RollingHrv(ROLLING_WINDOW_BEATS,
+            1000 * ROLLING_WINDOW_SECONDS);
+        SummaryRowWriter out = null;
+        try {
+            out = new SummaryRowWriter(new FileWriter(rollingFile), DELIMITER);
+            out.write("Time,nRRVals,AvgHR,MeanRR,SDNN,RMSSD,NN50,PNN50" + LS);
+            int nRrVals = rrVals.size();
+            double curTime = startTimeFor(startTimeString);
+            double rr;
+            for(int i = 0; i < nRrVals; i++) {
+                rr = rrVals.getVal(i);
+                // Compensate for RR_RAW_CONVERSTION_FACTOR
+                curTime += rr / RR_RAW_CONVERSION_FACTOR;
+                if(rrVals.getMarked(i)) continue;
+                rolling.add(curTime, rr);
+                out.field(ECGUtils.formatHxMTime(Math.round(curTime)));
+                out.field(rolling.getNRrVals());
+                out.field(rolling.getAvgHr(), 2);
+                out.field(rolling.getMeanRr(), 2);
+                out.field(rolling.getSdnn(), 2);
+                out.field(rolling.getRmssd(), 2);
+                out.field(rolling.getNn50());
+                out.field(rolling.getPnn50() * 100, 2);
+                out.endRow();
+            }
+            out.close();
+            out = null;
+            return true;
+        } catch(Exception ex) {
+            System.err.println("Error writing " + rollingFile.getPath());
+            ex.printStackTrace();
+            return false;
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ex) {
+                    // Already reported
+                }
             }
         }
     }
@@ -390,29 +1005,21 @@ public class ReadEliteHRV
      */
     public static boolean writeHxMFile(String startTimeString,
         ArrayList<MarkedDouble> rrVals) {
-        // The startTime is of the form: "2015-03-09 22:50:02"
-        // 012345678901234567890
-        int year = Integer.parseInt(startTimeString.substring(1, 5));
-        int month = Integer.parseInt(startTimeString.substring(6, 8));
-        int day = Integer.parseInt(startTimeString.substring(9, 11));
-        int hour = Integer.parseInt(startTimeString.substring(12, 14));
-        int min = Integer.parseInt(startTimeString.substring(15, 17));
-        int sec = Integer.parseInt(startTimeString.substring(18, 20));
+        return writeHxMFile(startTimeString, MarkedSeries.fromList(rrVals));
+    }
 
+    /**
+     * Writes a session file using the RR values in a MarkedSeries.
+     * 
+     * @return
+     */
+    public static boolean writeHxMFile(String startTimeString,
+        MarkedSeries rrVals) {
         // Start time
-        GregorianCalendar cal = new GregorianCalendar(year, month - 1, day,
-            hour, min, sec);
-        // System.out.println(sdf.format(cal.getTime()));
-        long startTime = cal.getTimeInMillis();
+        long startTime = startTimeFor(startTimeString);
 
         // Output file
-        String template = HXM_CSV_TEMPLATE;
-        if(FILTER_OUTLIERS) {
-            template = HXM_CSV_TEMPLATE_FILTERED;
-        }
-        String hxmName = String.format(template, year, month, day, hour, min,
-            sec);
-        File hxmFile = new File(HXM_FILE_DIR, hxmName);
+        File hxmFile = hxmFileFor(startTimeString);
         if(PROMPT_TO_OVERWRITE_HXM_FILE && hxmFile.exists()) {
             int result = JOptionPane.showConfirmDialog(null,
                 "File exists:" + LS + hxmFile.getPath() + LS
@@ -423,24 +1030,100 @@ public class ReadEliteHRV
             }
         }
 
-        // Make the rrList, which is the start times
+        // Make the rrTimes, which is the start times
+        int nRrVals = rrVals.size();
         double curTime = startTime;
-        ArrayList<MarkedDouble> rrTimes = new ArrayList<MarkedDouble>();
-        rrTimes.add(new MarkedDouble(curTime));
-        ListIterator<MarkedDouble> li = rrVals.listIterator();
-        MarkedDouble md;
-        while(li.hasNext()) {
-            md = li.next();
+        MarkedSeries rrTimes = new MarkedSeries(nRrVals + 1);
+        rrTimes.add(curTime);
+        for(int i = 0; i < nRrVals; i++) {
             // Has to be in real time units
             // Compensate for RR_RAW_CONVERSTION_FACTOR
-            curTime += md.getVal() / RR_RAW_CONVERSION_FACTOR;
-            rrTimes.add(new MarkedDouble(curTime, md.getMarked()));
+            curTime += rrVals.getVal(i) / RR_RAW_CONVERSION_FACTOR;
+            rrTimes.add(curTime, rrVals.getMarked(i));
         }
+        File hxmBinaryFile = WRITE_HXM_BINARY_FILE
+            ? HxMBinary.binaryFileFor(hxmFile) : null;
         ECGUtils.CreateHxMFileReturn res = ECGUtils.writeHxMFile(hxmFile,
-            startTime, rrTimes, MOVING_AVG_LENGTH);
+            startTime, rrTimes, MOVING_AVG_LENGTH, hxmBinaryFile);
         return res.getRetVal();
     }
 
+    /**
+     * Returns the HxM file written for a session.
+     * 
+     * @param startTimeString The time stamp of the form "2015-03-09 22:50:02"
+     *            including the quotes.
+     * @return
+     */
+    private static File hxmFileFor(String startTimeString) {
+        String template = HXM_CSV_TEMPLATE;
+        if(FILTER_OUTLIERS) {
+            template = HXM_CSV_TEMPLATE_FILTERED;
+        }
+        return sessionFileFor(new File(HXM_FILE_DIR), template,
+            startTimeString);
+    }
+
+    /**
+     * Returns the rolling file written for a session, which is in the
+     * directory of outName.
+     * 
+     * @param startTimeString The time stamp of the form "2015-03-09 22:50:02"
+     *            including the quotes.
+     * @return
+     */
+    private static File rollingFileFor(String startTimeString) {
+        return sessionFileFor(new File(outName).getAbsoluteFile()
+            .getParentFile(), ROLLING_CSV_TEMPLATE, startTimeString);
+    }
+
+    /**
+     * Returns a file for a session with a name made from the template and the
+     * time stamp.
+     * 
+     * @param dir The directory for the file.
+     * @param template A format with the year, month, day, hour, min, and sec.
+     * @param startTimeString The time stamp of the form "2015-03-09 22:50:02"
+     *            including the quotes.
+     * @return
+     */
+    private static File sessionFileFor(File dir, String template,
+        String startTimeString) {
+        // The startTime is of the form: "2015-03-09 22:50:02"
+        // 012345678901234567890
+        int year = Integer.parseInt(startTimeString.substring(1, 5));
+        int month = Integer.parseInt(startTimeString.substring(6, 8));
+        int day = Integer.parseInt(startTimeString.substring(9, 11));
+        int hour = Integer.parseInt(startTimeString.substring(12, 14));
+        int min = Integer.parseInt(startTimeString.substring(15, 17));
+        int sec = Integer.parseInt(startTimeString.substring(18, 20));
+        String name = String.format(template, year, month, day, hour, min,
+            sec);
+        return new File(dir, name);
+    }
+
+    /**
+     * Returns the start time of a session in ms.
+     * 
+     * @param startTimeString The time stamp of the form "2015-03-09 22:50:02"
+     *            including the quotes.
+     * @return
+     */
+    private static long startTimeFor(String startTimeString) {
+        // The startTime is of the form: "2015-03-09 22:50:02"
+        // 012345678901234567890
+        int year = Integer.parseInt(startTimeString.substring(1, 5));
+        int month = Integer.parseInt(startTimeString.substring(6, 8));
+        int day = Integer.parseInt(startTimeString.substring(9, 11));
+        int hour = Integer.parseInt(startTimeString.substring(12, 14));
+        int min = Integer.parseInt(startTimeString.substring(15, 17));
+        int sec = Integer.parseInt(startTimeString.substring(18, 20));
+        GregorianCalendar cal = new GregorianCalendar(year, month - 1, day,
+            hour, min, sec);
+        // System.out.println(sdf.format(cal.getTime()));
+        return cal.getTimeInMillis();
+    }
+
     /**
      * Generates a time stamp String from a file name.
      * 
@@ -527,10 +1210,18 @@ public class ReadEliteHRV
     public static void main(String[] args) {
         switch(readMode) {
         case TXT:
-            processTxt();
+            if(PARALLEL) {
+                processTxtParallel();
+            } else {
+                processTxt();
+            }
             break;
         case CSV:
-            processCSV();
+            if(STREAM_CSV) {
+                processCSVStreaming();
+            } else {
+                processCSV();
+            }
             break;
         }
     }
@@ -0,0 +1,243 @@
+package net.kenevans.ecgutils;
+
+/**
+ * RollingHrv calculates HRV metrics over a sliding window of beats. The window
+ * holds at most maxBeats beats and spans at most maxTime ms, whichever is
+ * smaller. When a beat is added, the oldest beats are removed until the window
+ * fits, and the sums, sums of squares, successive-difference sums, and NN50
+ * count are updated for just the beats that enter and leave, so each step is
+ * O(1) amortized.
+ *
+ * The successive differences are taken between consecutive beats added, as in
+ * HrvMetrics, so add only the unmarked beats. The RR sums are kept relative to
+ * the first value added to reduce cancellation, and all sums are recalculated
+ * from the window after as many removals as the window holds, so rounding
+ * errors cannot build up over a long session.
+ *
+ * The beats are kept in primitive ring buffers that grow as needed, so adding
+ * a beat does not allocate once the buffers are large enough. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class RollingHrv
+{
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxBeats;
+    private final double maxTime;
+    // Ring buffers of capacity a power of 2
+    private double[] times = new double[INITIAL_CAPACITY];
+    private double[] rrs = new double[INITIAL_CAPACITY];
+    /** Difference from the previous beat. Not used for the oldest beat. */
+    private double[] sds = new double[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int head;
+    private int count;
+    private int nRemoved;
+    /** The last RR added, which may no longer be in the window. */
+    private double prevRr;
+    private boolean hasPrev;
+    /** Offset subtracted from the RR values in the sums. */
+    private double ref;
+    private boolean hasRef;
+    private double rrSum;
+    private double rrSumsq;
+    private double hrSum;
+    private double sdSumsq;
+    private int nn50;
+
+    /**
+     * RollingHrv constructor.
+     *
+     * @param maxBeats The maximum number of beats in the window, or 0 for no
+     *            limit.
+     * @param maxTime The maximum time in ms from the oldest to the newest beat,
+     *            or 0 for no limit.
+     */
+    public RollingHrv(int maxBeats, double maxTime) {
+        if(maxBeats <= 0 && maxTime <= 0) {
+            throw new IllegalArgumentException(
+                "Either maxBeats or maxTime must be positive");
+        }
+        this.maxBeats = maxBeats;
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * Adds a beat and removes beats that no longer fit in the window.
+     *
+     * @param time The time of the beat in ms.
+     * @param rr The RR value in ms.
+     */
+    public void add(double time, double rr) {
+        if(!hasRef) {
+            ref = rr;
+            hasRef = true;
+        }
+        if(count == times.length) {
+            grow();
+        }
+        int i = (head + count) & mask;
+        times[i] = time;
+        rrs[i] = rr;
+        // The difference only counts if the previous beat is still there
+        sds[i] = hasPrev ? rr - prevRr : 0;
+        if(count > 0) {
+            addSd(sds[i], 1);
+        }
+        count++;
+        double x = rr - ref;
+        rrSum += x;
+        rrSumsq += x * x;
+        hrSum += 60000. / rr;
+        prevRr = rr;
+        hasPrev = true;
+
+        while(count > 1 && ((maxBeats > 0 && count > maxBeats)
+            || (maxTime > 0 && time - times[head] > maxTime))) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Clears the window so the instance can be reused for a new session.
+     */
+    public void clear() {
+        head = 0;
+        count = 0;
+        nRemoved = 0;
+        hasPrev = false;
+        hasRef = false;
+        rrSum = 0;
+        rrSumsq = 0;
+        hrSum = 0;
+        sdSumsq = 0;
+        nn50 = 0;
+    }
+
+    private void removeOldest() {
+        double x = rrs[head] - ref;
+        rrSum -= x;
+        rrSumsq -= x * x;
+        hrSum -= 60000. / rrs[head];
+        head = (head + 1) & mask;
+        count--;
+        // The new oldest beat no longer has a previous beat in the window
+        addSd(sds[head], -1);
+        if(++nRemoved >= count) {
+            recalculate();
+        }
+    }
+
+    private void addSd(double sd, int sign) {
+        sdSumsq += sign * sd * sd;
+        if(Math.abs(sd) > HrvMetrics.NN50_THRESHOLD) {
+            nn50 += sign;
+        }
+    }
+
+    /**
+     * Recalculates the sums from the beats in the window.
+     */
+    private void recalculate() {
+        nRemoved = 0;
+        rrSum = 0;
+        rrSumsq = 0;
+        hrSum = 0;
+        sdSumsq = 0;
+        int i;
+        double x, sd;
+        for(int k = 0; k < count; k++) {
+            i = (head + k) & mask;
+            x = rrs[i] - ref;
+            rrSum += x;
+            rrSumsq += x * x;
+            hrSum += 60000. / rrs[i];
+            if(k > 0) {
+                sd = sds[i];
+                sdSumsq += sd * sd;
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = 2 * times.length;
+        double[] newTimes = new double[capacity];
+        double[] newRrs = new double[capacity];
+        double[] newSds = new double[capacity];
+        int i;
+        for(int k = 0; k < count; k++) {
+            i = (head + k) & mask;
+            newTimes[k] = times[i];
+            newRrs[k] = rrs[i];
+            newSds[k] = sds[i];
+        }
+        times = newTimes;
+        rrs = newRrs;
+        sds = newSds;
+        mask = capacity - 1;
+        head = 0;
+    }
+
+    /**
+     * @return The number of beats in the window.
+     */
+    public int getNRrVals() {
+        return count;
+    }
+
+    /**
+     * @return The time of the newest beat in ms.
+     */
+    public double getTime() {
+        return (count == 0) ? 0 : times[(head + count - 1) & mask];
+    }
+
+    /**
+     * @return The mean RR in ms.
+     */
+    public double getMeanRr() {
+        return (count == 0) ? 0 : ref + rrSum / count;
+    }
+
+    /**
+     * @return The mean HR in beats/min.
+     */
+    public double getAvgHr() {
+        return (count == 0) ? 0 : hrSum / count;
+    }
+
+    /**
+     * @return The sample standard deviation of the RR values using n - 1.
+     */
+    public double getSdnn() {
+        if(count < 2) return 0;
+        double var = (rrSumsq - rrSum * rrSum / count) / (count - 1);
+        return (var > 0) ? Math.sqrt(var) : 0;
+    }
+
+    /**
+     * @return The root mean square of the successive differences.
+     */
+    public double getRmssd() {
+        if(count < 2) return 0;
+        double meanSq = sdSumsq / (count - 1);
+        return (meanSq > 0) ? Math.sqrt(meanSq) : 0;
+    }
+
+    /**
+     * @return The number of successive differences larger than 50 ms.
+     */
+    public int getNn50() {
+        return nn50;
+    }
+
+    /**
+     * @return NN50 divided by the number of successive differences, as a
+     *         fraction, not a percent.
+     */
+    public double getPnn50() {
+        return (count < 2) ? 0 : (double)nn50 / (count - 1);
+    }
+
+}
@@ -0,0 +1,155 @@
+package net.kenevans.ecgutils;
+
+import java.util.BitSet;
+
+/**
+ * SampleEntropy calculates the sample entropy, SampEn(m, r), of a series as
+ * defined by Richman and Moorman. It is -ln(A / B), where B is the number of
+ * pairs of templates of length m that match within r in every element and A
+ * is the number of those that still match at length m + 1. The same N - m
+ * templates are used for both.
+ *
+ * Rather than comparing every pair of templates, the templates are sorted by
+ * their first element, and each one is only compared with the following
+ * templates in that order whose first element is within r. The counts are the
+ * same as the textbook O(N^2) method, but only a small fraction of the pairs
+ * are examined for the usual r of about .2 SD.
+ *
+ * The buffers are kept and only grown, so an instance can be reused for many
+ * series. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class SampleEntropy
+{
+    private double[] vals = new double[0];
+    private int[] order = new int[0];
+    private int[] tmp = new int[0];
+    private long nMatchesM;
+    private long nMatchesM1;
+
+    /**
+     * Calculates SampEn(m, r) for the unmarked values.
+     *
+     * @param x The values.
+     * @param n The number of values to use.
+     * @param marks Bit i is set if value i should be skipped. May be null.
+     * @param m The template length.
+     * @param r The tolerance.
+     * @return The sample entropy, or NaN if there are no matches of either
+     *         length.
+     */
+    public double compute(double[] x, int n, BitSet marks, int m,
+        double r) {
+        if(vals.length < n) {
+            vals = new double[n];
+        }
+        int nUsed = 0;
+        for(int i = 0; i < n; i++) {
+            if(marks != null && marks.get(i)) continue;
+            vals[nUsed++] = x[i];
+        }
+        return compute(vals, nUsed, m, r);
+    }
+
+    /**
+     * Calculates SampEn(m, r) for the first n values.
+     *
+     * @param x The values.
+     * @param n The number of values to use.
+     * @param m The template length.
+     * @param r The tolerance.
+     * @return The sample entropy, or NaN if there are no matches of either
+     *         length.
+     */
+    public double compute(double[] x, int n, int m, double r) {
+        nMatchesM = 0;
+        nMatchesM1 = 0;
+        int nTemplates = n - m;
+        if(m < 1 || nTemplates < 2) return Double.NaN;
+        if(order.length < nTemplates) {
+            order = new int[nTemplates];
+            tmp = new int[nTemplates];
+        }
+        for(int i = 0; i < nTemplates; i++) {
+            order[i] = i;
+        }
+        sortByValue(x, nTemplates);
+
+        long b = 0, a = 0;
+        int i, j, k;
+        double xi;
+        for(int ia = 0; ia < nTemplates; ia++) {
+            i = order[ia];
+            xi = x[i];
+            for(int ib = ia + 1; ib < nTemplates; ib++) {
+                j = order[ib];
+                // Sorted, so none of the rest match in the first element
+                if(x[j] - xi > r) break;
+                for(k = 1; k < m; k++) {
+                    if(Math.abs(x[i + k] - x[j + k]) > r) break;
+                }
+                if(k < m) continue;
+                b++;
+                if(Math.abs(x[i + m] - x[j + m]) <= r) {
+                    a++;
+                }
+            }
+        }
+        nMatchesM = b;
+        nMatchesM1 = a;
+        if(a == 0 || b == 0) return Double.NaN;
+        return -Math.log((double)a / b);
+    }
+
+    /**
+     * Sorts the first n entries of order by the values they index, using a
+     * merge sort with the tmp buffer.
+     *
+     * @param x
+     * @param n
+     */
+    private void sortByValue(double[] x, int n) {
+        int[] src = order;
+        int[] dst = tmp;
+        int[] swap;
+        for(int width = 1; width < n; width <<= 1) {
+            for(int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int p = lo, q = mid, d = lo;
+                while(p < mid && q < hi) {
+                    dst[d++] = (x[src[q]] < x[src[p]]) ? src[q++] : src[p++];
+                }
+                while(p < mid) {
+                    dst[d++] = src[p++];
+                }
+                while(q < hi) {
+                    dst[d++] = src[q++];
+                }
+            }
+            swap = src;
+            src = dst;
+            dst = swap;
+        }
+        if(src != order) {
+            System.arraycopy(src, 0, order, 0, n);
+        }
+    }
+
+    /**
+     * @return The number of matching pairs of length m from the last compute.
+     */
+    public long getNMatchesM() {
+        return nMatchesM;
+    }
+
+    /**
+     * @return The number of matching pairs of length m + 1 from the last
+     *         compute.
+     */
+    public long getNMatchesM1() {
+        return nMatchesM1;
+    }
+
+}
@@ -0,0 +1,146 @@
+package net.kenevans.ecgutils;
+
+import java.util.Arrays;
+
+/**
+ * SlidingMedian maintains the median of a window of values taken from a fixed
+ * array. Values are added and removed by index, so the window can slide in
+ * either direction and need not be contiguous.
+ *
+ * The values are ranked once on construction. The window is then kept as a
+ * Fenwick (binary indexed) tree of counts over the ranks, so adding a value,
+ * removing a value, and finding the k-th smallest value are all O(log n) with
+ * no allocation.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class SlidingMedian
+{
+    private final double[] sorted;
+    private final int[] rank;
+    private final int[] tree;
+    private final int nVals;
+    private final int topBit;
+    private int size;
+
+    /**
+     * SlidingMedian constructor.
+     *
+     * @param vals The values. Only the first nVals are used.
+     * @param nVals The number of values.
+     */
+    public SlidingMedian(double[] vals, int nVals) {
+        this.nVals = nVals;
+        sorted = Arrays.copyOf(vals, nVals);
+        Arrays.sort(sorted);
+        rank = new int[nVals];
+        for(int i = 0; i < nVals; i++) {
+            rank[i] = lowerBound(sorted, vals[i]);
+        }
+        tree = new int[nVals + 1];
+        int bit = 1;
+        while(bit <= nVals / 2) {
+            bit <<= 1;
+        }
+        topBit = bit;
+    }
+
+    /**
+     * Adds the value at index i to the window.
+     *
+     * @param i
+     */
+    public void add(int i) {
+        for(int j = rank[i] + 1; j <= nVals; j += j & -j) {
+            tree[j]++;
+        }
+        size++;
+    }
+
+    /**
+     * Removes the value at index i from the window. It must have been added.
+     *
+     * @param i
+     */
+    public void remove(int i) {
+        for(int j = rank[i] + 1; j <= nVals; j += j & -j) {
+            tree[j]--;
+        }
+        size--;
+    }
+
+    /**
+     * Removes all values from the window.
+     */
+    public void clear() {
+        Arrays.fill(tree, 0);
+        size = 0;
+    }
+
+    /**
+     * @return The number of values in the window.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the k-th smallest value in the window, where k = 1 is the
+     * smallest.
+     *
+     * @param k
+     * @return
+     */
+    public double kth(int k) {
+        if(k < 1 || k > size) {
+            throw new IllegalArgumentException("k=" + k + " is not in [1, "
+                + size + "]");
+        }
+        int pos = 0;
+        for(int bit = topBit; bit > 0; bit >>= 1) {
+            int next = pos + bit;
+            if(next <= nVals && tree[next] < k) {
+                pos = next;
+                k -= tree[next];
+            }
+        }
+        return sorted[pos];
+    }
+
+    /**
+     * Returns the median of the window. For an even number of values it is the
+     * mean of the two middle values.
+     *
+     * @return The median or 0 if the window is empty.
+     */
+    public double getMedian() {
+        if(size == 0) return 0;
+        if((size & 1) == 1) {
+            return kth(size / 2 + 1);
+        }
+        return .5 * (kth(size / 2) + kth(size / 2 + 1));
+    }
+
+    /**
+     * Returns the first index in the sorted array a with a value not less than
+     * val.
+     *
+     * @param a
+     * @param val
+     * @return
+     */
+    private static int lowerBound(double[] a, double val) {
+        int lo = 0;
+        int hi = a.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] < val) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
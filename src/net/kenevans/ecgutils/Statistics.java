@@ -10,6 +10,13 @@ package net.kenevans.ecgutils;
  * Statistics calculates the max, min, mean, and standard deviation for an array
  * of doubles. The standard deviation is sample-based and uses n-1, not n;
  * 
+ * Values may also be accumulated one at a time with add or addAll, and partial
+ * results may be combined with merge. The mean and variance are accumulated
+ * with Welford's method, which avoids the loss of precision of sumsq -
+ * n*mean^2 when the values are large compared to their spread. The array
+ * constructor uses two passes instead, with the mean as sum / n as before and
+ * the variance from the differences from that mean.
+ * 
  * @author Kenneth Evans, Jr.
  */
 public class Statistics
@@ -17,26 +24,32 @@ public class Statistics
     private double max = 0.0;
     private double min = 0.0;
     private double mean = 0.0;
-    private double sigma = 0.0;
-    private double rms = 0.0;
+    /** Sum of squares of differences from the mean. */
+    private double m2 = 0.0;
+    private double sumsq = 0.0;
     private int maxIndex = 0;
     private int minIndex = 0;
     private int nPoints;
 
+    /**
+     * Statistics constructor for an empty accumulator.
+     */
+    public Statistics() {
+    }
+
     /**
      * Statistics constructor
      * 
      * @param array
      */
     public Statistics(double[] array) {
-        int nPoints = array.length;
-        if(nPoints == 0) return;
+        int n = array.length;
+        if(n == 0) return;
 
-        max = -Double.MAX_VALUE;
-        min = Double.MAX_VALUE;
+        max = array[0];
+        min = array[0];
         double sum = 0.0;
-        double sumsq = 0.0;
-        for(int i = 0; i < nPoints; i++) {
+        for(int i = 0; i < n; i++) {
             double val = array[i];
             if(val > max) {
                 max = val;
@@ -49,10 +62,91 @@ public class Statistics
             sum += val;
             sumsq += val * val;
         }
-        mean = sum / nPoints;
-        rms = Math.sqrt(sumsq / nPoints);
-        sigma = (sumsq - nPoints * mean * mean) / (nPoints - 1);
-        sigma = Math.sqrt(sigma);
+        nPoints = n;
+        mean = sum / n;
+        double delta;
+        for(int i = 0; i < n; i++) {
+            delta = array[i] - mean;
+            m2 += delta * delta;
+        }
+    }
+
+    /**
+     * Adds a value. Its index is the number of values added before it.
+     * 
+     * @param val
+     */
+    public void add(double val) {
+        if(nPoints == 0) {
+            max = val;
+            min = val;
+            maxIndex = 0;
+            minIndex = 0;
+        } else {
+            if(val > max) {
+                max = val;
+                maxIndex = nPoints;
+            }
+            if(val < min) {
+                min = val;
+                minIndex = nPoints;
+            }
+        }
+        nPoints++;
+        double delta = val - mean;
+        mean += delta / nPoints;
+        m2 += delta * (val - mean);
+        sumsq += val * val;
+    }
+
+    /**
+     * Adds the values in array from index from (inclusive) to index to
+     * (exclusive).
+     * 
+     * @param array
+     * @param from
+     * @param to
+     */
+    public void addAll(double[] array, int from, int to) {
+        for(int i = from; i < to; i++) {
+            add(array[i]);
+        }
+    }
+
+    /**
+     * Combines the values accumulated in other into this one as if they had
+     * been added after the values already here. The indices of the max and min
+     * are adjusted accordingly. The other Statistics is not changed.
+     * 
+     * @param other
+     */
+    public void merge(Statistics other) {
+        if(other.nPoints == 0) return;
+        if(nPoints == 0) {
+            max = other.max;
+            min = other.min;
+            maxIndex = other.maxIndex;
+            minIndex = other.minIndex;
+            mean = other.mean;
+            m2 = other.m2;
+            sumsq = other.sumsq;
+            nPoints = other.nPoints;
+            return;
+        }
+        if(other.max > max) {
+            max = other.max;
+            maxIndex = nPoints + other.maxIndex;
+        }
+        if(other.min < min) {
+            min = other.min;
+            minIndex = nPoints + other.minIndex;
+        }
+        int n = nPoints + other.nPoints;
+        double delta = other.mean - mean;
+        mean += delta * other.nPoints / n;
+        m2 += other.m2 + delta * delta * ((double)nPoints * other.nPoints) / n;
+        sumsq += other.sumsq;
+        nPoints = n;
     }
 
     /**
@@ -80,14 +174,16 @@ public class Statistics
      * @return Returns the rms.
      */
     public double getRms() {
-        return rms;
+        if(nPoints == 0) return 0.0;
+        return Math.sqrt(sumsq / nPoints);
     }
 
     /**
      * @return Returns the sample standard deviation, sigma, using n - 1, not n;
      */
     public double getSigma() {
-        return sigma;
+        if(nPoints == 0) return 0.0;
+        return Math.sqrt(m2 / (nPoints - 1));
     }
 
     /**
@@ -119,8 +215,8 @@ public class Statistics
         info += "Max:   " + max + " at i = " + maxIndex + "\n";
         info += "Min:   " + min + " at i = " + minIndex + "\n";
         info += "Mean:  " + mean + "\n";
-        info += "Sigma: " + sigma + "\n";
-        info += "RMS:   " + rms + "\n";
+        info += "Sigma: " + getSigma() + "\n";
+        info += "RMS:   " + getRms() + "\n";
         return info;
     }
 
@@ -0,0 +1,276 @@
+package net.kenevans.ecgutils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * SummaryRowWriter writes delimited rows of a summary file, such as
+ * EliteHRVData.csv. Strings, longs, and doubles with a fixed number of
+ * decimals are formatted directly into a reusable char buffer, which is
+ * written to the underlying Writer in bulk when it gets full, rather than
+ * through String.format for each value.
+ *
+ * Doubles are rounded as String.format("%.2f") rounds them, that is, half up
+ * on the shortest decimal representation given by Double.toString, but the
+ * output does not depend on the Locale. The decimal separator is always '.'
+ * and there is no grouping. NaN and the infinities are written as NaN,
+ * Infinity, and -Infinity. Not thread safe.
+ *
+ * @author Kenneth Evans, Jr.
+ */
+public class SummaryRowWriter implements Closeable, Flushable
+{
+    private static final int DEFAULT_FLUSH_SIZE = 64 * 1024;
+    /** The largest number of decimals supported. */
+    public static final int MAX_DECIMALS = 9;
+    private static final long[] POWERS_OF_10 = new long[MAX_DECIMALS + 1];
+    static {
+        POWERS_OF_10[0] = 1;
+        for(int i = 1; i <= MAX_DECIMALS; i++) {
+            POWERS_OF_10[i] = 10 * POWERS_OF_10[i - 1];
+        }
+    }
+    /** Scaled values at or above this are formatted with BigDecimal. */
+    private static final double MAX_FAST_SCALED = 1e15;
+
+    private final Writer out;
+    private final String delimiter;
+    private final int flushSize;
+    private char[] buf;
+    private int pos;
+    /** Whether the next field is the first in the row. */
+    private boolean firstField = true;
+
+    /**
+     * SummaryRowWriter constructor.
+     *
+     * @param out The Writer to write to.
+     * @param delimiter The delimiter between fields.
+     */
+    public SummaryRowWriter(Writer out, String delimiter) {
+        this(out, delimiter, DEFAULT_FLUSH_SIZE);
+    }
+
+    /**
+     * SummaryRowWriter constructor.
+     *
+     * @param out The Writer to write to.
+     * @param delimiter The delimiter between fields.
+     * @param flushSize The buffer is written to out when a row ends and it
+     *            has at least this many chars.
+     */
+    public SummaryRowWriter(Writer out, String delimiter, int flushSize) {
+        this.out = out;
+        this.delimiter = delimiter;
+        this.flushSize = flushSize;
+        buf = new char[Math.max(flushSize, 256) + 256];
+    }
+
+    /**
+     * Writes a string as is, with no delimiter. Use for headers and rows that
+     * are already formatted.
+     *
+     * @param string
+     * @throws IOException
+     */
+    public void write(String string) throws IOException {
+        append(string);
+        if(pos >= flushSize) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes a string field.
+     *
+     * @param val
+     */
+    public void field(String val) {
+        startField();
+        append(val);
+    }
+
+    /**
+     * Writes a long field.
+     *
+     * @param val
+     */
+    public void field(long val) {
+        startField();
+        ensureCapacity(20);
+        pos = appendLong(buf, pos, val);
+    }
+
+    /**
+     * Writes a double field with the given number of decimals.
+     *
+     * @param val
+     * @param decimals From 0 to MAX_DECIMALS.
+     */
+    public void field(double val, int decimals) {
+        startField();
+        // Large values may have up to 309 digits before the decimal point
+        ensureCapacity(Math.abs(val) < MAX_FAST_SCALED ? 32 : 340);
+        pos = appendFixed(buf, pos, val, decimals);
+    }
+
+    /**
+     * Ends the row with the line separator and writes the buffer to the
+     * underlying Writer if it is full enough.
+     *
+     * @throws IOException
+     */
+    public void endRow() throws IOException {
+        append(Utils.LS);
+        firstField = true;
+        if(pos >= flushSize) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes the buffer to the underlying Writer without flushing it.
+     *
+     * @throws IOException
+     */
+    public void flushBuffer() throws IOException {
+        if(pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void startField() {
+        if(firstField) {
+            firstField = false;
+        } else {
+            append(delimiter);
+        }
+    }
+
+    private void append(String string) {
+        int len = string.length();
+        ensureCapacity(len);
+        string.getChars(0, len, buf, pos);
+        pos += len;
+    }
+
+    private void ensureCapacity(int n) {
+        if(pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(2 * buf.length, pos + n));
+        }
+    }
+
+    /**
+     * Formats a long into buf at off.
+     *
+     * @param buf
+     * @param off
+     * @param val
+     * @return The new offset.
+     */
+    static int appendLong(char[] buf, int off, long val) {
+        if(val == Long.MIN_VALUE) {
+            String string = Long.toString(val);
+            string.getChars(0, string.length(), buf, off);
+            return off + string.length();
+        }
+        if(val < 0) {
+            buf[off++] = '-';
+            val = -val;
+        }
+        int start = off;
+        do {
+            buf[off++] = (char)('0' + (int)(val % 10));
+            val /= 10;
+        } while(val != 0);
+        // Reverse the digits
+        for(int i = start, j = off - 1; i < j; i++, j--) {
+            char tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return off;
+    }
+
+    /**
+     * Formats a double with the given number of decimals into buf at off. The
+     * buffer must have room for the result, which is at most 32 chars unless
+     * the magnitude is at least 1e15.
+     *
+     * @param buf
+     * @param off
+     * @param val
+     * @param decimals From 0 to MAX_DECIMALS.
+     * @return The new offset.
+     */
+    static int appendFixed(char[] buf, int off, double val, int decimals) {
+        if(decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Invalid decimals: " + decimals);
+        }
+        if(Double.isNaN(val) || Double.isInfinite(val)) {
+            String string = Double.toString(val);
+            string.getChars(0, string.length(), buf, off);
+            return off + string.length();
+        }
+        // String.format writes -0.00 for -0.0 and small negative values
+        if(Double.doubleToRawLongBits(val) < 0) {
+            buf[off++] = '-';
+            val = -val;
+        }
+        long scale = POWERS_OF_10[decimals];
+        double scaled = val * scale;
+        long rounded = -1;
+        if(scaled < MAX_FAST_SCALED) {
+            long whole = (long)scaled;
+            double frac = scaled - whole;
+            // Only decide here if the rounding errors in val * scale and in
+            // the shortest representation cannot matter
+            if(Math.abs(frac - .5) > 4 * Math.ulp(scaled)) {
+                rounded = (frac > .5) ? whole + 1 : whole;
+            }
+        }
+        if(rounded < 0) {
+            String string = new BigDecimal(Double.toString(val))
+                .setScale(decimals, RoundingMode.HALF_UP).toPlainString();
+            if(off + string.length() > buf.length) {
+                throw new IllegalArgumentException("Buffer too small for "
+                    + string);
+            }
+            string.getChars(0, string.length(), buf, off);
+            return off + string.length();
+        }
+        off = appendLong(buf, off, rounded / scale);
+        if(decimals > 0) {
+            buf[off++] = '.';
+            long fraction = rounded % scale;
+            for(int i = decimals - 1; i >= 0; i--) {
+                buf[off + i] = (char)('0' + (int)(fraction % 10));
+                fraction /= 10;
+            }
+            off += decimals;
+        }
+        return off;
+    }
+
+}